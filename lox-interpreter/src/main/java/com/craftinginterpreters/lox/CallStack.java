@@ -0,0 +1,36 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The Lox functions an interpreter is currently inside, and the line each of
+// them has reached. Kept only while a LoxProfiler is attached.
+//
+// Only the interpreter's own thread writes a stack. The profiler reads it
+// from its sampling thread without any locking, which at worst gives a sample
+// that is a call or a line out of date.
+final class CallStack {
+    String[] functions = new String[32];
+    int[] lines = new int[32];
+    int depth = 0;
+
+    void push(String function, int line) {
+        if (depth == functions.length) {
+            functions = Arrays.copyOf(functions, depth * 2);
+            lines = Arrays.copyOf(lines, depth * 2);
+        }
+        functions[depth] = function;
+        lines[depth] = line;
+        depth++;
+    }
+
+    void pop() {
+        depth--;
+    }
+
+    // Records the line the innermost function has reached.
+    void line(int line) {
+        if (depth > 0) {
+            lines[depth - 1] = line;
+        }
+    }
+}
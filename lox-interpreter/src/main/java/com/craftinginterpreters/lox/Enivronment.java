@@ -2,10 +2,15 @@ package com.craftinginterpreters.lox;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Environment {
+    // Stands in for nil so the values can move into a ConcurrentHashMap.
+    private static final Object NIL = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private Map<String, Object> values = new HashMap<>();
+    boolean shared = false;
 
     Environment() {
         enclosing = null;
@@ -13,18 +18,53 @@ class Environment {
     
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.environments.increment();
+        }
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        values.put(name, value == null ? NIL : value);
+    }
+
+    // Binds a function or class declaration. Only the global scope treats
+    // these differently from a plain variable.
+    void defineConstant(String name, Object value) {
+        define(name, value);
     }
 
     Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+        return unwrap(ancestor(distance).values.get(name));
     }
 
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        ancestor(distance).values.put(name.lexeme, value == null ? NIL : value);
+    }
+
+    // Called before this scope and the ones around it become visible to
+    // another thread, i.e. before a function closing over them is spawned as
+    // a task. From then on the variables can be read and written from any
+    // thread. The field swap needs no volatile: submitting the task publishes
+    // it to the new thread, and any thread that could already see these
+    // scopes was handed them the same way, after an earlier share().
+    void share() {
+        for (Environment environment = this;
+             environment != null && !environment.shared;
+             environment = environment.enclosing) {
+            environment.values = new ConcurrentHashMap<>(environment.values);
+            environment.shared = true;
+        }
+    }
+
+    // The variables declared in this scope, for tools that walk the heap.
+    Map<String, Object> variables() {
+        Map<String, Object> variables = new HashMap<>();
+        values.forEach((name, value) -> variables.put(name, unwrap(value)));
+        return variables;
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NIL ? null : value;
     }
 
     Environment ancestor(int distance) {
@@ -36,8 +76,9 @@ class Environment {
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Object value = values.get(name.lexeme);
+        if (value != null) {
+            return unwrap(value);
         }
     
         if (enclosing != null) {
@@ -50,7 +91,7 @@ class Environment {
 
     void assign(Token name, Object value) {
         if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+            values.put(name.lexeme, value == null ? NIL : value);
             return;
         }
 
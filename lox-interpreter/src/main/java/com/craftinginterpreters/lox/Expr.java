@@ -29,6 +29,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
+    int symbol = -1;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -59,6 +61,7 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    volatile JavaInterop.CallSite javaSite;
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -137,6 +140,7 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    int depth = -1;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -148,6 +152,7 @@ abstract class Expr {
     }
 
     final Token keyword;
+    int depth = -1;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -172,6 +177,9 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
+    int symbol = -1;
+    volatile GlobalEnvironment.Cache globalCache;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
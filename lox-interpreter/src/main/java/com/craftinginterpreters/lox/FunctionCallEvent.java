@@ -0,0 +1,24 @@
+package com.craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder event for one call of a Lox function. The Java stack of an
+// interpreter says nothing useful about the Lox one, so none is recorded.
+@Name("com.craftinginterpreters.lox.FunctionCall")
+@Label("Lox Function Call")
+@Description("A Lox function or method ran")
+@Category("Lox")
+@StackTrace(false)
+class FunctionCallEvent extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Line")
+    @Description("Line the function is declared on")
+    int line;
+}
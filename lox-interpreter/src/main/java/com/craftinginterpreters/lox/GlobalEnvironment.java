@@ -0,0 +1,186 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// The global scope.
+//
+// Every global name is bound to a Slot that is created once and never moved.
+// Slots are indexed by the name's symbol, which the resolver already stored on
+// each global site, so reading a global never hashes its name.
+//
+// On top of that, a site caches the Slot it resolved to, and functions and
+// classes declared once and never assigned are speculated to be constant:
+// their sites cache the value itself. If the binding is ever assigned or
+// redeclared the speculation is dropped and every dependent site goes back
+// to the plain slot read. A cache is only used by the context it was made
+// for. When another context runs the same program, the site is resolved
+// again and caches that context's slot instead.
+//
+// Tasks started with spawn() share their context's globals, so reads and
+// writes here are safe from any thread. Only the slow paths take locks.
+class GlobalEnvironment extends Environment {
+
+    final SymbolTable symbols;
+    private volatile Slot[] slots = new Slot[64];
+
+    GlobalEnvironment(SymbolTable symbols) {
+        this.symbols = symbols;
+        // Already safe to use from several threads.
+        this.shared = true;
+    }
+
+    @Override
+    void define(String name, Object value) {
+        slot(symbols.intern(name)).bind(value, false);
+    }
+
+    @Override
+    void defineConstant(String name, Object value) {
+        slot(symbols.intern(name)).bind(value, true);
+    }
+
+    @Override
+    Object get(Token name) {
+        return defined(symbols.intern(name.lexeme), name).value;
+    }
+
+    @Override
+    void assign(Token name, Object value) {
+        defined(symbols.intern(name.lexeme), name).set(value);
+    }
+
+    // Slow path of a global read. Resolves the site and caches the result,
+    // replacing any cache another context left there.
+    Object get(Expr.Variable expr) {
+        Slot slot = defined(expr.symbol, expr.name);
+        slot.install(this, expr);
+        return slot.value;
+    }
+
+    void assign(Expr.Assign expr, Object value) {
+        defined(expr.symbol, expr.name).set(value);
+    }
+
+    @Override
+    Map<String, Object> variables() {
+        Map<String, Object> variables = new HashMap<>();
+        Slot[] slots = this.slots;
+        symbols.forEach((name, symbol) -> {
+            if (symbol < slots.length && slots[symbol] != null
+                && slots[symbol].defined) {
+                variables.put(name, slots[symbol].value);
+            }
+        });
+        return variables;
+    }
+
+    // Whether the global is still bound to the function or class first
+    // declared with that name.
+    boolean isConstant(int symbol) {
+        Slot[] slots = this.slots;
+        return symbol < slots.length && slots[symbol] != null
+            && slots[symbol].constant;
+    }
+
+    private synchronized Slot slot(int symbol) {
+        Slot[] slots = this.slots;
+        if (symbol >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(symbol + 1, slots.length * 2));
+        }
+        Slot slot = slots[symbol];
+        if (slot == null) {
+            slot = new Slot();
+            slots[symbol] = slot;
+        }
+        this.slots = slots;
+        return slot;
+    }
+
+    private Slot defined(int symbol, Token name) {
+        Slot[] slots = this.slots;
+        Slot slot = symbol < slots.length ? slots[symbol] : null;
+        if (slot == null || !slot.defined) {
+            throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+        }
+        return slot;
+    }
+
+    static final class Slot {
+        volatile Object value;
+        volatile boolean defined;
+        volatile boolean constant;
+        // Sites that have cached this slot's value as a constant. Held
+        // weakly: the program a site belongs to, such as a line typed into
+        // the REPL, can be collected once it has run, and must not be kept
+        // alive by every global it read. A site is only in here once, however
+        // often contexts take turns caching it.
+        Set<Expr.Variable> dependents =
+            Collections.newSetFromMap(new WeakHashMap<>());
+
+        private synchronized void bind(Object value, boolean constant) {
+            if (defined) {
+                invalidate();
+            } else {
+                this.constant = constant;
+            }
+            this.value = value;
+            this.defined = true;
+        }
+
+        private void set(Object value) {
+            if (constant) {
+                invalidate();
+            }
+            this.value = value;
+        }
+
+        private synchronized void install(GlobalEnvironment owner,
+                                          Expr.Variable site) {
+            site.globalCache = new Cache(owner, this, constant);
+            if (constant) {
+                dependents.add(site);
+            }
+        }
+
+        private synchronized void invalidate() {
+            if (!constant) {
+                return;
+            }
+            constant = false;
+            for (Expr.Variable site : dependents) {
+                if (site.globalCache != null
+                    && site.globalCache.slot == this) {
+                    site.globalCache = null;
+                }
+            }
+            dependents = null;
+        }
+    }
+
+    // What a site remembers about the global it resolved to. Immutable, so a
+    // site can swap it in with a single field write even while other threads
+    // run the same program.
+    static final class Cache {
+        final GlobalEnvironment owner;
+        final Slot slot;
+        private final boolean constant;
+        private final Object value;
+
+        Cache(GlobalEnvironment owner, Slot slot, boolean constant) {
+            this.owner = owner;
+            this.slot = slot;
+            this.constant = constant;
+            this.value = constant ? slot.value : null;
+        }
+
+        Object get() {
+            return constant ? value : slot.value;
+        }
+    }
+}
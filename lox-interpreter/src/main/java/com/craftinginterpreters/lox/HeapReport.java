@@ -0,0 +1,365 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Estimates what the Lox values reachable from a context's globals keep
+// alive.
+//
+// The walk builds a graph of instances, classes, functions, environments,
+// strings and numbers, then computes its dominator tree: an object's
+// retained size is its own size plus that of everything only reachable
+// through it. A closure whose retained size dwarfs the function itself is
+// holding on to a large enclosing scope.
+//
+// Sizes are estimates for a 64-bit JVM with compressed pointers. They are
+// good for finding what grows, not for exact accounting.
+final class HeapReport {
+    private static final int LIMIT = 10;
+
+    private static final class Node {
+        final Object object;
+        // The first reference the walk reached the object by.
+        final Node parent;
+        final String edge;
+        final long shallow;
+        final List<Node> references = new ArrayList<>();
+        final List<Node> referrers = new ArrayList<>();
+        int postorder = -1;
+        Node dominator;
+        long retained;
+
+        Node(Object object, Node parent, String edge, long shallow) {
+            this.object = object;
+            this.parent = parent;
+            this.edge = edge;
+            this.shallow = shallow;
+        }
+
+        // How the object is reached from a global, with the middle of long
+        // chains left out.
+        String path() {
+            List<String> edges = new ArrayList<>();
+            for (Node node = this; node.parent != null; node = node.parent) {
+                edges.add(node.edge);
+            }
+            StringBuilder path = new StringBuilder();
+            for (int i = edges.size() - 1; i >= 0; i--) {
+                if (edges.size() > 8 && i == edges.size() - 4) {
+                    path.append(" ...").append(edges.size() - 7).append(" more...");
+                    i = 3;
+                }
+                path.append(edges.get(i));
+            }
+            return path.toString();
+        }
+    }
+
+    private final Map<Object, Node> nodes = new IdentityHashMap<>();
+    private final Deque<Node> pending = new ArrayDeque<>();
+    private final Node root;
+    private final List<Node> postorder = new ArrayList<>();
+
+    HeapReport(GlobalEnvironment globals) {
+        root = new Node(globals, null, null, 0);
+        nodes.put(globals, root);
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            expand(pending.poll());
+        }
+        number();
+        dominate();
+        for (Node node : postorder) {
+            node.retained += node.shallow;
+            if (node != root) {
+                node.dominator.retained += node.retained;
+            }
+        }
+    }
+
+    static String of(Interpreter interpreter) {
+        return new HeapReport(interpreter.globals).format();
+    }
+
+    // The object every path from the globals to the given one goes through,
+    // or the globals themselves.
+    Object dominator(Object object) {
+        return nodes.get(object).dominator.object;
+    }
+
+    long retained(Object object) {
+        return nodes.get(object).retained;
+    }
+
+    private void expand(Node node) {
+        Object object = node.object;
+        if (object instanceof Environment) {
+            Environment environment = (Environment) object;
+            for (Map.Entry<String, Object> variable :
+                 environment.variables().entrySet()) {
+                String name = node == root
+                    ? variable.getKey() : "." + variable.getKey();
+                reference(node, variable.getValue(), name);
+            }
+            reference(node, environment.enclosing, " enclosing");
+        } else if (object instanceof LoxInstance) {
+            LoxInstance instance = (LoxInstance) object;
+            for (Map.Entry<String, Object> field : instance.fields().entrySet()) {
+                reference(node, field.getValue(), "." + field.getKey());
+            }
+            reference(node, instance.klass, " class");
+        } else if (object instanceof LoxClass) {
+            LoxClass klass = (LoxClass) object;
+            for (Map.Entry<String, LoxFunction> method : klass.methods.entrySet()) {
+                reference(node, method.getValue(), "." + method.getKey());
+            }
+            reference(node, klass.superclass, " superclass");
+        } else if (object instanceof LoxFunction) {
+            reference(node, ((LoxFunction) object).closure, " closure");
+        } else if (object instanceof LoxModule) {
+            reference(node, ((LoxModule) object).globals, " globals");
+        } else if (object instanceof LoxMap) {
+            Object[] snapshot = ((LoxMap) object).snapshot();
+            int count = snapshot.length / 2;
+            for (int i = 0; i < count; i++) {
+                String key = Interpreter.stringify(snapshot[i]);
+                reference(node, snapshot[i], "{" + key + "}");
+                reference(node, snapshot[count + i], "[" + key + "]");
+            }
+        } else if (object instanceof LoxArray) {
+            Object[] elements = ((LoxArray) object).elements();
+            for (int i = 0; i < elements.length; i++) {
+                // Numbers in a double[] are not objects of their own.
+                if (!(elements[i] instanceof Double)) {
+                    reference(node, elements[i], "[" + i + "]");
+                }
+            }
+        }
+    }
+
+    private void reference(Node from, Object object, String edge) {
+        // Booleans and nil take no space of their own.
+        if (object == null || object instanceof Boolean) {
+            return;
+        }
+        Node node = nodes.get(object);
+        if (node == null) {
+            node = new Node(object, from, edge, shallowSize(object));
+            nodes.put(object, node);
+            pending.add(node);
+        }
+        from.references.add(node);
+        node.referrers.add(from);
+    }
+
+    // Depth-first postorder, without recursion so deep lists and closure
+    // chains cannot overflow the Java stack.
+    private void number() {
+        Deque<Node> stack = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+        root.postorder = -2;
+        stack.push(root);
+        next.push(0);
+        while (!stack.isEmpty()) {
+            Node node = stack.peek();
+            int i = next.pop();
+            if (i < node.references.size()) {
+                next.push(i + 1);
+                Node child = node.references.get(i);
+                if (child.postorder == -1) {
+                    child.postorder = -2;
+                    stack.push(child);
+                    next.push(0);
+                }
+            } else {
+                stack.pop();
+                node.postorder = postorder.size();
+                postorder.add(node);
+            }
+        }
+    }
+
+    // Cooper, Harvey and Kennedy's iterative algorithm.
+    private void dominate() {
+        root.dominator = root;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = postorder.size() - 2; i >= 0; i--) {
+                Node node = postorder.get(i);
+                Node dominator = null;
+                for (Node referrer : node.referrers) {
+                    if (referrer.dominator == null) {
+                        continue;
+                    }
+                    dominator = dominator == null
+                        ? referrer : intersect(referrer, dominator);
+                }
+                if (node.dominator != dominator) {
+                    node.dominator = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static Node intersect(Node a, Node b) {
+        while (a != b) {
+            while (a.postorder < b.postorder) {
+                a = a.dominator;
+            }
+            while (b.postorder < a.postorder) {
+                b = b.dominator;
+            }
+        }
+        return a;
+    }
+
+    private String format() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%d objects, ~%d bytes reachable from globals.%n",
+            nodes.size() - 1, root.retained));
+
+        // Per kind, an object dominated by another of the same kind is
+        // already inside that one's retained size.
+        Map<String, long[]> kinds = new LinkedHashMap<>();
+        List<Node> objects = new ArrayList<>();
+        List<Node> closures = new ArrayList<>();
+        for (Node node : postorder) {
+            if (node == root) {
+                continue;
+            }
+            objects.add(node);
+            if (node.object instanceof LoxFunction) {
+                closures.add(node);
+            }
+            String kind = kind(node.object);
+            long[] totals = kinds.computeIfAbsent(kind, k -> new long[3]);
+            totals[0]++;
+            totals[1] += node.shallow;
+            if (node.dominator == root || !kind.equals(kind(node.dominator.object))) {
+                totals[2] += node.retained;
+            }
+        }
+
+        out.append(String.format("%n%8s %10s %10s  %s%n",
+            "count", "~shallow", "~retained", "kind"));
+        List<Map.Entry<String, long[]>> rows = new ArrayList<>(kinds.entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue()[2], a.getValue()[2]));
+        for (Map.Entry<String, long[]> row : rows) {
+            long[] totals = row.getValue();
+            out.append(String.format("%8d %10d %10d  %s%n",
+                totals[0], totals[1], totals[2], row.getKey()));
+        }
+
+        out.append(String.format("%n%10s %10s  %s%n",
+            "~retained", "~shallow", "largest objects"));
+        objects.removeIf(node -> node.dominator != root
+            && kind(node.object).equals(kind(node.dominator.object)));
+        objects.sort((a, b) -> Long.compare(b.retained, a.retained));
+        for (Node node : objects.subList(0, Math.min(LIMIT, objects.size()))) {
+            out.append(String.format("%10d %10d  %s (%s)%n",
+                node.retained, node.shallow, node.path(), kind(node.object)));
+        }
+
+        out.append(String.format("%n%10s %6s  %s%n",
+            "~retained", "scopes", "closures"));
+        closures.sort((a, b) -> Long.compare(b.retained, a.retained));
+        for (Node node : closures.subList(0, Math.min(LIMIT, closures.size()))) {
+            LoxFunction function = (LoxFunction) node.object;
+            out.append(String.format("%10d %6d  %s [line %d] (%s)%n",
+                node.retained, scopes(function.closure),
+                function, function.declaration.name.line, node.path()));
+        }
+        return out.toString();
+    }
+
+    // How many scopes a closure keeps, not counting the globals.
+    private static int scopes(Environment closure) {
+        int scopes = 0;
+        for (Environment environment = closure;
+             environment != null && !(environment instanceof GlobalEnvironment);
+             environment = environment.enclosing) {
+            scopes++;
+        }
+        return scopes;
+    }
+
+    private static String kind(Object object) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).klass.name + " instance";
+        }
+        if (object instanceof LoxClass) {
+            return "class";
+        }
+        if (object instanceof LoxFunction) {
+            return "function";
+        }
+        if (object instanceof Environment) {
+            return "environment";
+        }
+        if (Rope.isString(object)) {
+            return "string";
+        }
+        if (object instanceof Double) {
+            return "number";
+        }
+        if (object instanceof LoxArray) {
+            return "array";
+        }
+        if (object instanceof LoxMap) {
+            return "map";
+        }
+        if (object instanceof LoxModule) {
+            return "module";
+        }
+        return "native";
+    }
+
+    private static long shallowSize(Object object) {
+        if (object instanceof Environment) {
+            return 24 + mapSize(((Environment) object).variables().size(), 48);
+        }
+        if (object instanceof LoxInstance) {
+            return 16 + mapSize(((LoxInstance) object).fields().size(), 64);
+        }
+        if (object instanceof LoxClass) {
+            return 24 + mapSize(((LoxClass) object).methods.size(), 48);
+        }
+        if (object instanceof LoxFunction) {
+            return 24;
+        }
+        if (object instanceof LoxArray) {
+            return 24 + align(16 + ((LoxArray) object).storageBytes());
+        }
+        if (object instanceof LoxMap) {
+            return 32 + ((LoxMap) object).storageBytes();
+        }
+        // Counts a rope as if it were already flat.
+        if (Rope.isString(object)) {
+            return 24 + align(16 + ((CharSequence) object).length());
+        }
+        return 16;
+    }
+
+    // A hash map with its table and one node per entry.
+    private static long mapSize(int entries, long header) {
+        if (entries == 0) {
+            return header;
+        }
+        int capacity = 16;
+        while (capacity * 3 / 4 < entries) {
+            capacity *= 2;
+        }
+        return header + align(16 + 4L * capacity) + 32L * entries;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7;
+    }
+}
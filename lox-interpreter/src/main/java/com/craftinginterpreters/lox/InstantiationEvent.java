@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder event for creating an instance, including its initializer.
+@Name("com.craftinginterpreters.lox.Instantiation")
+@Label("Lox Instantiation")
+@Description("A Lox class was called to create an instance")
+@Category("Lox")
+@StackTrace(false)
+class InstantiationEvent extends Event {
+    @Label("Class")
+    String className;
+}
@@ -1,60 +1,459 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    // Track Global environment.
-    final Environment globals = new Environment();
+    // Stands in for a module while its program runs on some thread. Other
+    // threads importing it wait for the result.
+    private static final class Loading {
+        final Thread thread = Thread.currentThread();
+        final CompletableFuture<LoxModule> module = new CompletableFuture<>();
+    }
+
+    // How deep evaluate() may recurse before it hands the rest of an
+    // expression to evaluateIteratively().
+    private static final int MAX_NESTING = 256;
+
+    private final LoxEngine engine;
+    // Track Global environment. While a function imported from a module
+    // runs, the module's.
+    GlobalEnvironment globals;
     // Track 'current' environment.
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private Environment environment;
+    private final OutputSink out;
+    // The modules this context has imported by path, shared with its tasks
+    // and with the modules themselves. Guarded by itself.
+    private final Map<String, Object> modules;
+    // The tasks started in this context that run() has not yet waited for,
+    // shared the same way.
+    final Queue<LoxTask> tasks;
+    // The writers opened by create() in this context and not yet closed,
+    // shared the same way. flushOutput() flushes them with the output.
+    final Set<LoxOutput> writers;
+    // Set while a LoxProfiler is attached. See CallStack.
+    LoxProfiler profiler;
+    CallStack callStack;
+    // Set while allocations are being counted. Line is then the last line
+    // the interpreter reached.
+    LoxAllocationProfiler allocations;
+    int line;
+    // How many evaluate() calls are on the Java stack in the current
+    // function. LoxFunction starts each call from zero.
+    int nesting;
   
-    Interpreter() {
+    Interpreter(LoxEngine engine, OutputSink out) {
+        this(engine, out, new HashMap<>(), new ConcurrentLinkedQueue<>(),
+            ConcurrentHashMap.newKeySet());
+    }
+
+    private Interpreter(LoxEngine engine, OutputSink out,
+                        Map<String, Object> modules, Queue<LoxTask> tasks,
+                        Set<LoxOutput> writers) {
+        this.engine = engine;
+        this.globals = new GlobalEnvironment(engine.symbols);
+        this.environment = globals;
+        this.out = out;
+        this.modules = modules;
+        this.tasks = tasks;
+        this.writers = writers;
         // Define global FFI functions.
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-        
+        globals.define("clock", new NativeFunction(0) {
             @Override
             public Object call(Interpreter interpreter,
                                 List<Object> arguments) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
-        
+        });
+
+        // Arrays and maps. See LoxArray and LoxMap.
+        globals.define("array", new NativeFunction(0) {
             @Override
-            public String toString() { return "<native fn>"; }
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return new LoxArray();
+            }
+        });
+        globals.define("map", new NativeFunction(0) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return new LoxMap();
+            }
         });
+        globals.define("len", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object value = arguments.get(0);
+                if (value instanceof LoxArray) {
+                    return (double) ((LoxArray) value).size();
+                }
+                if (value instanceof LoxMap) {
+                    return (double) ((LoxMap) value).size();
+                }
+                if (Rope.isString(value)) {
+                    return (double) ((CharSequence) value).length();
+                }
+                throw new NativeError(
+                    "Can only take the length of arrays, maps and strings.");
+            }
+        });
+        globals.define("get", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object collection = arguments.get(0);
+                if (collection instanceof LoxMap) {
+                    return ((LoxMap) collection).get(arguments.get(1));
+                }
+                return array(collection).get(arguments.get(1));
+            }
+        });
+        globals.define("set", new NativeFunction(3) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object collection = arguments.get(0);
+                if (collection instanceof LoxMap) {
+                    ((LoxMap) collection).set(arguments.get(1), arguments.get(2));
+                } else {
+                    array(collection).set(arguments.get(1), arguments.get(2));
+                }
+                return arguments.get(2);
+            }
+        });
+        globals.define("push", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                array(arguments.get(0)).push(arguments.get(1));
+                return arguments.get(0);
+            }
+        });
+        globals.define("pop", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return array(arguments.get(0)).pop();
+            }
+        });
+        globals.define("has", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return map(arguments.get(0)).has(arguments.get(1));
+            }
+        });
+        globals.define("remove", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return map(arguments.get(0)).remove(arguments.get(1));
+            }
+        });
+        globals.define("keys", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return map(arguments.get(0)).keys();
+            }
+        });
+        globals.define("values", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return map(arguments.get(0)).values();
+            }
+        });
+
+        // Streaming input and output. See LineReader and LoxOutput.
+        globals.define("open", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return LineReader.open(arguments.get(0));
+            }
+        });
+        globals.define("stdin", new NativeFunction(0) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return LineReader.stdin();
+            }
+        });
+        globals.define("readLine", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object reader = arguments.get(0);
+                if (!(reader instanceof LineReader)) {
+                    throw new NativeError("Can only read lines from a reader.");
+                }
+                return ((LineReader) reader).readLine();
+            }
+        });
+        globals.define("create", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                LoxOutput writer = LoxOutput.create(arguments.get(0));
+                interpreter.writers.add(writer);
+                return writer;
+            }
+        });
+        globals.define("write", new NativeFunction(2) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object writer = arguments.get(0);
+                if (!(writer instanceof LoxOutput)) {
+                    throw new NativeError("Can only write to a writer.");
+                }
+                LoxOutput output = (LoxOutput) writer;
+                output.print(stringify(arguments.get(1)));
+                if (output.checkError()) {
+                    throw new NativeError("Cannot write to file.");
+                }
+                return null;
+            }
+        });
+        globals.define("close", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object stream = arguments.get(0);
+                if (stream instanceof LineReader) {
+                    ((LineReader) stream).close();
+                } else if (stream instanceof LoxOutput) {
+                    ((LoxOutput) stream).close();
+                    interpreter.writers.remove(stream);
+                    if (((LoxOutput) stream).checkError()) {
+                        throw new NativeError("Cannot write to file.");
+                    }
+                } else {
+                    throw new NativeError("Can only close readers and writers.");
+                }
+                return null;
+            }
+        });
+
+        // What the program's values keep alive. See HeapReport.
+        globals.define("heapReport", new NativeFunction(0) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return HeapReport.of(interpreter);
+            }
+        });
+
+        // Whitelisted Java classes. See JavaInterop.
+        globals.define("java", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return engine.java.load(arguments.get(0));
+            }
+        });
+
+        // Concurrency. See LoxTask.
+        globals.define("spawn", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object function = arguments.get(0);
+                if (!(function instanceof LoxCallable)
+                    || ((LoxCallable) function).arity() != 0) {
+                    throw new NativeError(
+                        "Can only spawn functions that take no arguments.");
+                }
+                return new LoxTask(interpreter, (LoxCallable) function);
+            }
+        });
+        globals.define("join", new NativeFunction(1) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                Object task = arguments.get(0);
+                if (!(task instanceof LoxTask)) {
+                    throw new NativeError("Can only join tasks.");
+                }
+                return ((LoxTask) task).join();
+            }
+        });
+
+        // Data parallelism. See ParallelRange.
+        globals.define("parallelFor", new NativeFunction(3) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                ParallelRange.forEach(interpreter, arguments.get(0),
+                    arguments.get(1), arguments.get(2));
+                return null;
+            }
+        });
+        globals.define("parallelReduce", new NativeFunction(5) {
+            @Override
+            public Object call(Interpreter interpreter,
+                                List<Object> arguments) {
+                return ParallelRange.reduce(interpreter, arguments.get(0),
+                    arguments.get(1), arguments.get(2), arguments.get(3),
+                    arguments.get(4));
+            }
+        });
+    }
+
+    // Interpreter state for a task spawned by another interpreter. Shares
+    // its globals and output but has its own current environment.
+    Interpreter(Interpreter parent) {
+        this.engine = parent.engine;
+        this.globals = parent.globals;
+        this.environment = globals;
+        this.out = parent.out;
+        this.modules = parent.modules;
+        this.tasks = parent.tasks;
+        this.writers = parent.writers;
+        profile(parent.profiler);
+        this.allocations = parent.allocations;
+    }
+
+    void profile(LoxProfiler profiler) {
+        this.profiler = profiler;
+        this.callStack = profiler == null ? null : profiler.newStack();
+    }
+
+    void flushOutput() {
+        out.flush();
+        for (LoxOutput writer : writers) {
+            writer.flush();
+        }
     }
 
-    void interpret(List<Stmt> statements) {
+    void interpret(LoxProgram program) {
+        CallStack stack = callStack;
+        if (stack != null) {
+            stack.push("<script>", 0);
+        }
         try {
-            for (Stmt statement : statements) {
+            for (Stmt statement : program.statements) {
                 execute(statement);
             }
-        } catch (RuntimeError error) {
-            Lox.runtimeError(error);
-        }   
+        } finally {
+            if (stack != null) {
+                stack.pop();
+            }
+        }
+    }
+
+    // Tells the profiler, if any, which line is running.
+    private void at(Token token) {
+        if (callStack != null) {
+            callStack.line(token.line);
+        }
+        if (allocations != null) {
+            line = token.line;
+        }
     }
     
-    private String stringify(Object object) {
+    static String stringify(Object object) {
+        if (object instanceof LoxArray || object instanceof LoxMap) {
+            return stringifyContainer(object);
+        }
         if (object == null) return "nil";
     
-        // Hack. Work around Java adding ".0" to integer-valued doubles.
         if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-            text = text.substring(0, text.length() - 2);
-            }
-            return text;
+            return NumberFormatter.toString((double) object);
         }
     
         return object.toString();
     }
 
+    // Text a container prints around its elements. Closing a container
+    // takes it off the list of those being printed.
+    private static final class Piece {
+        final String text;
+        final Object closes;
+
+        Piece(String text, Object closes) {
+            this.text = text;
+            this.closes = closes;
+        }
+    }
+
+    private static final Piece NIL = new Piece("nil", null);
+    private static final Piece COMMA = new Piece(", ", null);
+    private static final Piece COLON = new Piece(": ", null);
+
+    // Prints arrays and maps with an explicit stack, so neither deep nesting
+    // nor a cycle through several containers can overflow the Java stack. A
+    // container met again inside itself prints as [...] or {...}. Each
+    // container is copied under its own lock, so printing never holds two.
+    private static String stringifyContainer(Object container) {
+        StringBuilder text = new StringBuilder();
+        Set<Object> printing = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(container);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof Piece) {
+                Piece piece = (Piece) next;
+                text.append(piece.text);
+                if (piece.closes != null) {
+                    printing.remove(piece.closes);
+                }
+            } else if (next instanceof LoxArray) {
+                if (!printing.add(next)) {
+                    text.append("[...]");
+                    continue;
+                }
+                Object[] elements = ((LoxArray) next).elements();
+                text.append('[');
+                pending.push(new Piece("]", next));
+                for (int i = elements.length - 1; i >= 0; i--) {
+                    pending.push(elements[i] == null ? NIL : elements[i]);
+                    if (i > 0) {
+                        pending.push(COMMA);
+                    }
+                }
+            } else if (next instanceof LoxMap) {
+                if (!printing.add(next)) {
+                    text.append("{...}");
+                    continue;
+                }
+                Object[] snapshot = ((LoxMap) next).snapshot();
+                int count = snapshot.length / 2;
+                text.append('{');
+                pending.push(new Piece("}", next));
+                for (int i = count - 1; i >= 0; i--) {
+                    Object key = snapshot[i];
+                    Object value = snapshot[count + i];
+                    pending.push(value == null ? NIL : value);
+                    pending.push(COLON);
+                    pending.push(key == null ? NIL : key);
+                    if (i > 0) {
+                        pending.push(COMMA);
+                    }
+                }
+            } else {
+                text.append(stringify(next));
+            }
+        }
+        return text.toString();
+    }
+
     // Evaluation Methods
 
     @Override
@@ -81,23 +480,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-      Object object = evaluate(expr.object);
-  
-      if (!(object instanceof LoxInstance)) { 
-        throw new RuntimeError(expr.name, "Only instances have fields.");
-      }
-  
+      at(expr.name);
+      Object object = instance(expr, evaluate(expr.object));
       Object value = evaluate(expr.value);
       ((LoxInstance)object).set(expr.name, value);
       return value;
     }
 
+    private Object instance(Expr.Set expr, Object object) {
+      if (!(object instanceof LoxInstance)) { 
+        throw new RuntimeError(expr.name, "Only instances have fields.");
+      }
+      return object;
+    }
+
     @Override                                           
     public Object visitSuperExpr(Expr.Super expr) {     
-        int distance = locals.get(expr);                  
+        int distance = expr.depth;
         LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
         // "this" is always one level nearer than "super"'s environment.
         LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+        if (allocations != null) {
+            allocations.recordBoundMethod(expr.method.line);
+        }
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.methodLookups.increment();
+        }
         LoxFunction method = superclass.findMethod(object, expr.method.lexeme);
         if (method == null) {                                     
             throw new RuntimeError(expr.method,                     
@@ -108,7 +516,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth);
     }
 
     @Override
@@ -117,15 +525,137 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private Object evaluate(Expr expr) {
-        return expr.accept(this);
+        if (nesting >= MAX_NESTING) {
+            return evaluateIteratively(expr);
+        }
+        nesting++;
+        try {
+            return expr.accept(this);
+        } finally {
+            nesting--;
+        }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // A node evaluateIteratively() has started, and how many of its
+    // operands it has pushed so far.
+    private static final class Frame {
+        final Expr expr;
+        int step = 0;
+
+        Frame(Expr expr) {
+            this.expr = expr;
+        }
+    }
+
+    // Evaluates an expression too deeply nested to recurse on, such as
+    // thousands of parenthesised or chained operators in generated code.
+    // Operands wait on a stack of values instead of in Java frames. Leaves
+    // are evaluated by their visit methods, and a call still recurses into
+    // the function it calls.
+    private Object evaluateIteratively(Expr root) {
+        List<Frame> frames = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        frames.add(new Frame(root));
+        while (!frames.isEmpty()) {
+            Frame frame = frames.get(frames.size() - 1);
+            Expr expr = frame.expr;
+            int step = frame.step++;
+            Expr next = null;
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                if (step == 0) {
+                    next = binary.left;
+                } else if (step == 1) {
+                    next = binary.right;
+                } else {
+                    Object right = pop(values);
+                    values.add(binary(binary, pop(values), right));
+                }
+            } else if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical) expr;
+                if (step == 0) {
+                    next = logical.left;
+                } else if (step == 1 && isTruthy(values.get(values.size() - 1))
+                    == (logical.operator.type != TokenType.OR)) {
+                    // Not short-circuited: the right operand's value is
+                    // the result.
+                    pop(values);
+                    next = logical.right;
+                }
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                if (step == 0) {
+                    next = unary.right;
+                } else {
+                    values.add(unary(unary, pop(values)));
+                }
+            } else if (expr instanceof Expr.Grouping) {
+                if (step == 0) {
+                    next = ((Expr.Grouping) expr).expression;
+                }
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign) expr;
+                if (step == 0) {
+                    at(assign.name);
+                    next = assign.value;
+                } else {
+                    values.add(assign(assign, pop(values)));
+                }
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                if (step == 1 && allocations != null) {
+                    allocations.recordArguments(call.paren.line);
+                }
+                if (step == 0) {
+                    next = call.callee;
+                } else if (step <= call.arguments.size()) {
+                    next = call.arguments.get(step - 1);
+                } else {
+                    List<Object> top = values.subList(
+                        values.size() - call.arguments.size(), values.size());
+                    List<Object> arguments = new ArrayList<>(top);
+                    top.clear();
+                    values.add(call(call, pop(values), arguments));
+                }
+            } else if (expr instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get) expr;
+                if (step == 0) {
+                    next = get.object;
+                } else {
+                    values.add(get(get, pop(values)));
+                }
+            } else if (expr instanceof Expr.Set) {
+                Expr.Set set = (Expr.Set) expr;
+                if (step == 0) {
+                    at(set.name);
+                    next = set.object;
+                } else if (step == 1) {
+                    instance(set, values.get(values.size() - 1));
+                    next = set.value;
+                } else {
+                    Object value = pop(values);
+                    ((LoxInstance) pop(values)).set(set.name, value);
+                    values.add(value);
+                }
+            } else {
+                values.add(expr.accept(this));
+            }
+
+            if (next != null) {
+                frames.add(new Frame(next));
+            } else {
+                frames.remove(frames.size() - 1);
+            }
+        }
+        return values.get(0);
+    }
+
+    private static Object pop(List<Object> values) {
+        return values.remove(values.size() - 1);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private void execute(Stmt stmt) {
+        stmt.accept(this);
     }
 
     void executeBlock(List<Stmt> statements, Environment environment) {
@@ -143,6 +673,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        if (allocations != null) {
+            allocations.recordEnvironment(line);
+        }
         executeBlock(stmt.statements, new Environment(environment));
         return null;
     }
@@ -158,8 +691,6 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }                                             
         }  
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {                     
             environment = new Environment(environment);      
             environment.define("super", superclass);         
@@ -167,7 +698,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));;
+            LoxFunction function = new LoxFunction(method, environment, globals,
+                method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
     
@@ -175,7 +707,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (superclass != null) {                      
             environment = environment.enclosing;         
         }         
-        environment.assign(stmt.name, klass);
+        environment.defineConstant(stmt.name.lexeme, klass);
         return null;
     }
 
@@ -187,8 +719,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
+        LoxFunction function = new LoxFunction(stmt, environment, globals, false);
+        environment.defineConstant(stmt.name.lexeme, function);
         return null;
     }
 
@@ -202,15 +734,101 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        at(stmt.keyword);
+        LoxModule module;
+        try {
+            module = importModule(stmt);
+        } catch (NativeError error) {
+            throw new RuntimeError(stmt.keyword, error.getMessage());
+        }
+        environment.define(stmt.name.lexeme, module);
+        return null;
+    }
+
+    // Runs a module the first time this context imports it, and again if
+    // its file has been recompiled since. Its program runs in globals of its
+    // own, with the natives but nothing of the importer's. The program runs
+    // outside the lock, so a task importing a module while another thread
+    // runs it waits for that run instead of blocking every import.
+    private LoxModule importModule(Stmt.Import stmt) {
+        LoxProgram program = engine.modules.program(stmt.file);
+        Loading loading;
+        synchronized (modules) {
+            Object loaded = modules.get(stmt.file);
+            if (loaded instanceof Loading) {
+                loading = (Loading) loaded;
+                if (loading.thread == Thread.currentThread()) {
+                    throw new NativeError(
+                        "Import cycle through '" + stmt.file + "'.");
+                }
+            } else if (loaded != null
+                       && ((LoxModule) loaded).program == program) {
+                return (LoxModule) loaded;
+            } else {
+                loading = new Loading();
+                modules.put(stmt.file, loading);
+            }
+        }
+        if (loading.thread != Thread.currentThread()) {
+            return awaitModule(loading);
+        }
+        return runModule(stmt, program, loading);
+    }
+
+    private LoxModule runModule(Stmt.Import stmt, LoxProgram program,
+                                Loading loading) {
+        try {
+            Interpreter interpreter =
+                new Interpreter(engine, out, modules, tasks, writers);
+            interpreter.profile(profiler);
+            interpreter.allocations = allocations;
+            interpreter.interpret(program);
+            LoxModule module = new LoxModule(stmt.name.lexeme, program,
+                interpreter.globals);
+            synchronized (modules) {
+                modules.put(stmt.file, module);
+            }
+            loading.module.complete(module);
+            return module;
+        } catch (RuntimeException | Error error) {
+            // The next import runs the module again.
+            synchronized (modules) {
+                modules.remove(stmt.file, loading);
+            }
+            loading.module.completeExceptionally(error);
+            throw error;
+        }
+    }
+
+    // Fails the way the run it waited for failed.
+    private static LoxModule awaitModule(Loading loading) {
+        try {
+            return loading.module.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        if (value instanceof Double) {
+            out.println((double) value);
+        } else {
+            out.println(stringify(value));
+        }
         return null;
     }
 
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
+        at(stmt.keyword);
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
@@ -220,6 +838,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        at(stmt.name);
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
@@ -239,13 +858,15 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
+        at(expr.name);
+        return assign(expr, evaluate(expr.value));
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-          environment.assignAt(distance, expr.name, value);
+    private Object assign(Expr.Assign expr, Object value) {
+        if (expr.depth >= 0) {
+          environment.assignAt(expr.depth, expr.name, value);
         } else {
-          globals.assign(expr.name, value);
+          globals.assign(expr, value);
         }
         
         return value;
@@ -255,6 +876,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right); 
+        return binary(expr, left, right);
+    }
+
+    private Object binary(Expr.Binary expr, Object left, Object right) {
+        at(expr.operator);
+        if (allocations != null && boxesNumber(expr.operator, left, right)) {
+            allocations.recordNumber(expr.operator.line);
+        }
   
         switch (expr.operator.type) {
             case GREATER:
@@ -276,8 +905,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left + (double) right;
                 } 
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
                 }
                 throw new RuntimeError(expr.operator,
                     "Operands must be two numbers or two strings.");
@@ -302,11 +931,27 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
+        if (allocations != null) {
+            allocations.recordArguments(expr.paren.line);
+        }
   
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) { 
             arguments.add(evaluate(argument));
         }
+        return call(expr, callee, arguments);
+    }
+
+    private Object call(Expr.Call expr, Object callee,
+                        List<Object> arguments) {
+        if (callee instanceof JavaInterop.Invocable) {
+            at(expr.paren);
+            try {
+                return ((JavaInterop.Invocable) callee).call(expr, arguments);
+            } catch (NativeError error) {
+                throw new RuntimeError(expr.paren, error.getMessage());
+            }
+        }
 
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren,
@@ -314,21 +959,43 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     
         LoxCallable function = (LoxCallable)callee;
+        at(expr.paren);
         if (arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                 function.arity() + " arguments but got " +
                 arguments.size() + ".");
         }
       
-        return function.call(this, arguments);
+        try {
+            return function.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return get(expr, evaluate(expr.object));
+    }
+
+    private Object get(Expr.Get expr, Object object) {
+        at(expr.name);
 
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            LoxInstance instance = (LoxInstance) object;
+            if (allocations != null && !instance.hasField(expr.name.lexeme)) {
+                allocations.recordBoundMethod(expr.name.line);
+            }
+            return instance.get(expr.name);
+        }
+        if (object instanceof LoxModule) {
+            return ((LoxModule) object).get(expr.name);
+        }
+        if (object instanceof JavaInterop.JavaClass) {
+            return ((JavaInterop.JavaClass) object).get(expr.name);
+        }
+        if (object instanceof JavaInterop.JavaObject) {
+            return ((JavaInterop.JavaObject) object).get(expr.name);
         }
     
         throw new RuntimeError(expr.name,
@@ -346,13 +1013,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        return unary(expr, evaluate(expr.right));
+    }
 
+    private Object unary(Expr.Unary expr, Object right) {
         switch (expr.operator.type) {
         case BANG:
             return !isTruthy(right);
         case MINUS:
             checkNumberOperand(expr.operator, right);
+            if (allocations != null) {
+                allocations.recordNumber(expr.operator.line);
+            }
             return -(double) right;
         }
 
@@ -362,18 +1034,55 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        // Steady state for a global: the site already knows its slot.
+        GlobalEnvironment.Cache cache = expr.globalCache;
+        if (cache != null && cache.owner == globals) {
+            return cache.get();
+        }
+        if (expr.depth >= 0) {
+            return environment.getAt(expr.depth, expr.name.lexeme);
+        }
+        return globals.get(expr);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
+    private Object lookUpVariable(Token name, int distance) {
+        if (distance >= 0) {
             return environment.getAt(distance, name.lexeme);
         } else {
             return globals.get(name);
         }
     }
 
+    // Whether a binary operator produces a new number from these operands.
+    private boolean boxesNumber(Token operator, Object left, Object right) {
+        if (!(left instanceof Double && right instanceof Double)) {
+            return false;
+        }
+        switch (operator.type) {
+            case MINUS:
+            case PLUS:
+            case SLASH:
+            case STAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static LoxArray array(Object value) {
+        if (value instanceof LoxArray) {
+            return (LoxArray) value;
+        }
+        throw new NativeError("Expected an array.");
+    }
+
+    private static LoxMap map(Object value) {
+        if (value instanceof LoxMap) {
+            return (LoxMap) value;
+        }
+        throw new NativeError("Expected a map.");
+    }
+
     private void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
@@ -399,7 +1108,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (a == null) {
             return false;
         }
-        return a.equals(b);
+        return Rope.normalize(a).equals(Rope.normalize(b));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,625 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Calls into Java classes that the embedder has allowed.
+//
+//   var Math = java("java.lang.Math");
+//   print Math.max(1, 2);
+//   var sb = java("java.lang.StringBuilder")();
+//   sb.append("x");
+//
+// A Java class is called to construct it, and its public methods and static
+// fields are properties. Numbers, strings, booleans and nil convert to the
+// parameter types a method takes and back again; any other Java object comes
+// back wrapped, with its own methods as properties.
+//
+// Only classes named with LoxEngine.allowJavaClass() or the lox.java.allow
+// system property can be loaded. On objects they return, a method can be
+// called if either the object's class or the method's declaring class is
+// allowed.
+//
+// Overloads are resolved at the first call from a site, using the classes of
+// the arguments. The chosen method becomes a MethodHandle with the argument
+// conversions bound in, cached on the Expr.Call node. Later calls from that
+// site with the same receiver class, method and argument classes invoke the
+// handle directly, without reflection.
+final class JavaInterop {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final MethodHandle TO_DOUBLE = converter("toDouble", double.class);
+    private static final MethodHandle TO_FLOAT = converter("toFloat", float.class);
+    private static final MethodHandle TO_LONG = converter("toLong", long.class);
+    private static final MethodHandle TO_INT = converter("toInt", int.class);
+    private static final MethodHandle TO_SHORT = converter("toShort", short.class);
+    private static final MethodHandle TO_BYTE = converter("toByte", byte.class);
+    private static final MethodHandle TO_CHAR = converter("toChar", char.class);
+    private static final MethodHandle TO_BOOLEAN = converter("toBoolean", boolean.class);
+    private static final MethodHandle TO_REFERENCE;
+    private static final MethodHandle FROM_JAVA;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TO_REFERENCE = lookup.findStatic(JavaInterop.class, "toReference",
+                MethodType.methodType(Object.class, Object.class, Class.class));
+            FROM_JAVA = lookup.findStatic(JavaInterop.class, "fromJava",
+                MethodType.methodType(Object.class, JavaInterop.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Public methods and static fields by name, per class.
+    private static final ClassValue<Set<String>> METHOD_NAMES =
+        new ClassValue<Set<String>>() {
+            @Override
+            protected Set<String> computeValue(Class<?> type) {
+                Set<String> names = new HashSet<>();
+                for (Method method : type.getMethods()) {
+                    names.add(method.getName());
+                }
+                return names;
+            }
+        };
+    private static final ClassValue<Map<String, Field>> STATIC_FIELDS =
+        new ClassValue<Map<String, Field>>() {
+            @Override
+            protected Map<String, Field> computeValue(Class<?> type) {
+                Map<String, Field> fields = new HashMap<>();
+                for (Field field : type.getFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        fields.put(field.getName(), field);
+                    }
+                }
+                return fields;
+            }
+        };
+
+    private final Set<String> allowed = ConcurrentHashMap.newKeySet();
+
+    JavaInterop() {
+        String classes = System.getProperty("lox.java.allow");
+        if (classes != null) {
+            for (String name : classes.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    allow(name.trim());
+                }
+            }
+        }
+    }
+
+    void allow(String className) {
+        allowed.add(className);
+    }
+
+    private boolean isAllowed(Class<?> type) {
+        return allowed.contains(type.getName());
+    }
+
+    // The java() native.
+    JavaClass load(Object name) {
+        if (!Rope.isString(name)) {
+            throw new NativeError("Java class name must be a string.");
+        }
+        String className = name.toString();
+        if (!allowed.contains(className)) {
+            throw new NativeError("Java class '" + className + "' is not allowed.");
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = JavaInterop.class.getClassLoader();
+        }
+        try {
+            Class<?> type = Class.forName(className, true, loader);
+            if (!Modifier.isPublic(type.getModifiers())) {
+                throw new NativeError("Java class '" + className + "' is not public.");
+            }
+            return new JavaClass(this, type);
+        } catch (ClassNotFoundException e) {
+            throw new NativeError("Java class '" + className + "' not found.");
+        }
+    }
+
+    // A Java value that Lox code can call.
+    abstract static class Invocable {
+        final JavaInterop interop;
+
+        Invocable(JavaInterop interop) {
+            this.interop = interop;
+        }
+
+        abstract Object call(Expr.Call site, List<Object> arguments);
+    }
+
+    // A class returned by java(). Calling it calls a constructor.
+    static final class JavaClass extends Invocable {
+        final Class<?> type;
+
+        JavaClass(JavaInterop interop, Class<?> type) {
+            super(interop);
+            this.type = type;
+        }
+
+        Object get(Token name) {
+            if (METHOD_NAMES.get(type).contains(name.lexeme)) {
+                return new JavaMethod(interop, type, name.lexeme, null, true);
+            }
+            Field field = STATIC_FIELDS.get(type).get(name.lexeme);
+            if (field == null) {
+                throw new RuntimeError(name,
+                    "Undefined property '" + name.lexeme + "'.");
+            }
+            try {
+                return fromJava(interop, field.get(null));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeError(name,
+                    "Cannot read Java field '" + name.lexeme + "'.");
+            }
+        }
+
+        @Override
+        Object call(Expr.Call site, List<Object> arguments) {
+            return interop.invoke(site, type, "<init>", null, true, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<java class " + type.getName() + ">";
+        }
+    }
+
+    // Any other Java object, as a method returned it.
+    static final class JavaObject {
+        final JavaInterop interop;
+        final Object value;
+
+        JavaObject(JavaInterop interop, Object value) {
+            this.interop = interop;
+            this.value = value;
+        }
+
+        Object get(Token name) {
+            if (!METHOD_NAMES.get(value.getClass()).contains(name.lexeme)) {
+                throw new RuntimeError(name,
+                    "Undefined property '" + name.lexeme + "'.");
+            }
+            return new JavaMethod(interop, value.getClass(), name.lexeme,
+                value, false);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof JavaObject
+                && value.equals(((JavaObject) other).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return value.toString();
+        }
+    }
+
+    // A method looked up on a class or object, not yet called.
+    static final class JavaMethod extends Invocable {
+        final Class<?> owner;
+        final String name;
+        // Null for static methods.
+        final Object receiver;
+        final boolean isStatic;
+
+        JavaMethod(JavaInterop interop, Class<?> owner, String name,
+                   Object receiver, boolean isStatic) {
+            super(interop);
+            this.owner = owner;
+            this.name = name;
+            this.receiver = receiver;
+            this.isStatic = isStatic;
+        }
+
+        @Override
+        Object call(Expr.Call site, List<Object> arguments) {
+            return interop.invoke(site, owner, name, receiver, isStatic, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<java method " + owner.getSimpleName() + "." + name + ">";
+        }
+    }
+
+    // What a call site resolved to last time, and for which classes.
+    static final class CallSite {
+        final Class<?> owner;
+        final String name;
+        final boolean isStatic;
+        final Class<?>[] kinds;
+        // Takes the receiver, if any, then the arguments, as one Object[].
+        final MethodHandle handle;
+
+        CallSite(Class<?> owner, String name, boolean isStatic,
+                 Class<?>[] kinds, MethodHandle handle) {
+            this.owner = owner;
+            this.name = name;
+            this.isStatic = isStatic;
+            this.kinds = kinds;
+            this.handle = handle;
+        }
+
+        boolean matches(Class<?> owner, String name, boolean isStatic,
+                        List<Object> arguments) {
+            if (owner != this.owner || !name.equals(this.name)
+                || isStatic != this.isStatic
+                || arguments.size() != kinds.length) {
+                return false;
+            }
+            for (int i = 0; i < kinds.length; i++) {
+                if (kind(arguments.get(i)) != kinds[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private Object invoke(Expr.Call expr, Class<?> owner, String name,
+                          Object receiver, boolean isStatic,
+                          List<Object> arguments) {
+        CallSite site = expr.javaSite;
+        if (site == null || !site.matches(owner, name, isStatic, arguments)) {
+            site = resolve(owner, name, isStatic, arguments);
+            expr.javaSite = site;
+        }
+
+        int offset = isStatic ? 0 : 1;
+        Object[] values = new Object[offset + arguments.size()];
+        if (!isStatic) {
+            values[0] = receiver;
+        }
+        for (int i = 0; i < arguments.size(); i++) {
+            values[offset + i] = arguments.get(i);
+        }
+        try {
+            return (Object) site.handle.invokeExact(values);
+        } catch (NativeError | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new NativeError("Java exception: " + e);
+        }
+    }
+
+    // Picks the overload whose parameters fit the arguments' classes best.
+    private CallSite resolve(Class<?> owner, String name, boolean isStatic,
+                             List<Object> arguments) {
+        Class<?>[] kinds = new Class<?>[arguments.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kind(arguments.get(i));
+        }
+
+        Executable[] candidates = name.equals("<init>")
+            ? owner.getConstructors() : owner.getMethods();
+        MethodHandle best = null;
+        String bestSignature = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (Executable candidate : candidates) {
+            if (candidate.getParameterCount() != kinds.length) {
+                continue;
+            }
+            if (candidate instanceof Method) {
+                Method method = (Method) candidate;
+                if (!method.getName().equals(name)
+                    || Modifier.isStatic(method.getModifiers()) != isStatic
+                    || !isAllowed(owner) && !isAllowed(method.getDeclaringClass())) {
+                    continue;
+                }
+            }
+            int cost = 0;
+            Class<?>[] parameters = candidate.getParameterTypes();
+            for (int i = 0; i < kinds.length && cost >= 0; i++) {
+                int fit = cost(kinds[i], parameters[i]);
+                cost = fit < 0 ? -1 : cost + fit;
+            }
+            if (cost < 0 || cost > bestCost) {
+                continue;
+            }
+            // Among equal fits, the choice must not depend on the order
+            // reflection happens to list methods in.
+            String signature = candidate.toString();
+            if (cost == bestCost && signature.compareTo(bestSignature) > 0) {
+                continue;
+            }
+            MethodHandle handle = unreflect(candidate);
+            if (handle != null) {
+                best = handle;
+                bestSignature = signature;
+                bestCost = cost;
+            }
+        }
+        if (best == null) {
+            String what = name.equals("<init>")
+                ? "constructor of " + owner.getName()
+                : "method '" + name + "' on " + owner.getName();
+            throw new NativeError("No accessible Java " + what
+                + " takes these " + kinds.length + " arguments.");
+        }
+        return new CallSite(owner, name, isStatic, kinds, adapt(best));
+    }
+
+    // Converts the arguments on the way in and the result on the way out,
+    // and takes everything as one array.
+    private MethodHandle adapt(MethodHandle handle) {
+        MethodType type = handle.type();
+        MethodHandle[] converters = new MethodHandle[type.parameterCount()];
+        for (int i = 0; i < converters.length; i++) {
+            converters[i] = converter(type.parameterType(i));
+        }
+        handle = MethodHandles.filterArguments(handle, 0, converters);
+        // Boxes a primitive result; a void method returns null.
+        handle = handle.asType(handle.type().changeReturnType(Object.class));
+        handle = MethodHandles.filterReturnValue(handle,
+            MethodHandles.insertArguments(FROM_JAVA, 0, this));
+        return handle.asSpreader(Object[].class, converters.length);
+    }
+
+    private static MethodHandle converter(Class<?> type) {
+        if (type == double.class) return TO_DOUBLE;
+        if (type == float.class) return TO_FLOAT;
+        if (type == long.class) return TO_LONG;
+        if (type == int.class) return TO_INT;
+        if (type == short.class) return TO_SHORT;
+        if (type == byte.class) return TO_BYTE;
+        if (type == char.class) return TO_CHAR;
+        if (type == boolean.class) return TO_BOOLEAN;
+        MethodHandle handle = MethodHandles.insertArguments(TO_REFERENCE, 1, type);
+        return handle.asType(MethodType.methodType(type, Object.class));
+    }
+
+    private static MethodHandle converter(String name, Class<?> type) {
+        try {
+            return MethodHandles.lookup().findStatic(JavaInterop.class, name,
+                MethodType.methodType(type, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // A method declared by a class outside an exported package can still be
+    // called through a public supertype that declares it.
+    private static MethodHandle unreflect(Executable executable) {
+        try {
+            if (executable instanceof Constructor) {
+                return LOOKUP.unreflectConstructor((Constructor<?>) executable);
+            }
+            return LOOKUP.unreflect((Method) executable);
+        } catch (IllegalAccessException e) {
+            if (executable instanceof Constructor) {
+                return null;
+            }
+        }
+        Deque<Class<?>> pending = new ArrayDeque<>();
+        pending.add(executable.getDeclaringClass());
+        Set<Class<?>> seen = new HashSet<>();
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.poll();
+            if (!seen.add(type)) {
+                continue;
+            }
+            try {
+                Method method = type.getMethod(executable.getName(),
+                    executable.getParameterTypes());
+                return LOOKUP.unreflect(method);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // Keep looking further up.
+            }
+            if (type.getSuperclass() != null) {
+                pending.add(type.getSuperclass());
+            }
+            for (Class<?> supertype : type.getInterfaces()) {
+                pending.add(supertype);
+            }
+        }
+        return null;
+    }
+
+    // The class a call site is keyed on for an argument. Ropes convert
+    // exactly like strings, wrapped objects by what they wrap, and integral
+    // numbers a long can hold as Long. Negative zero stays a Double, so it
+    // keeps its sign.
+    private static Class<?> kind(Object value) {
+        if (value == null) {
+            return Void.class;
+        }
+        if (value instanceof Rope) {
+            return String.class;
+        }
+        // Integers prefer integer overloads, so sb.append(1) appends "1".
+        if (value instanceof Double) {
+            double number = (double) value;
+            return isLong(number) ? Long.class : Double.class;
+        }
+        if (value instanceof JavaObject) {
+            return ((JavaObject) value).value.getClass();
+        }
+        return value.getClass();
+    }
+
+    private static boolean isLong(double number) {
+        return number == Math.rint(number)
+            && number >= -0x1p63 && number < 0x1p63
+            && (number != 0 || 1 / number > 0);
+    }
+
+    // How well an argument of this kind fits a parameter: 0 exactly, higher
+    // for looser fits, -1 not at all.
+    private static int cost(Class<?> kind, Class<?> parameter) {
+        if (kind == Void.class) {
+            return parameter.isPrimitive() ? -1 : 1;
+        }
+        if (kind == Double.class) {
+            if (parameter == double.class || parameter == Double.class) return 0;
+            if (parameter == float.class || parameter == Float.class) return 1;
+            if (parameter == Number.class) return 4;
+        } else if (kind == Long.class) {
+            if (parameter == long.class || parameter == Long.class) return 0;
+            if (parameter == int.class || parameter == Integer.class) return 1;
+            if (parameter == double.class || parameter == Double.class) return 2;
+            if (parameter == short.class || parameter == Short.class) return 3;
+            if (parameter == byte.class || parameter == Byte.class) return 3;
+            if (parameter == float.class || parameter == Float.class) return 3;
+            if (parameter == Number.class) return 4;
+        } else if (kind == String.class) {
+            if (parameter == String.class) return 0;
+            if (parameter == CharSequence.class) return 1;
+            if (parameter == char.class || parameter == Character.class) return 3;
+        } else if (kind == Boolean.class) {
+            if (parameter == boolean.class || parameter == Boolean.class) return 0;
+        } else if (parameter == kind) {
+            return 0;
+        } else if (parameter != Object.class && parameter.isAssignableFrom(kind)) {
+            return 1;
+        }
+        return parameter == Object.class ? 5 : -1;
+    }
+
+    private static double toDouble(Object value) {
+        return number(value);
+    }
+
+    private static float toFloat(Object value) {
+        return (float) number(value);
+    }
+
+    private static long toLong(Object value) {
+        // Long.MAX_VALUE rounds up to 2^63 as a double.
+        return (long) integer(value, Long.MIN_VALUE, Math.nextDown(0x1p63));
+    }
+
+    private static int toInt(Object value) {
+        return (int) integer(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    private static short toShort(Object value) {
+        return (short) integer(value, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    private static byte toByte(Object value) {
+        return (byte) integer(value, Byte.MIN_VALUE, Byte.MAX_VALUE);
+    }
+
+    private static char toChar(Object value) {
+        if (!Rope.isString(value) || ((CharSequence) value).length() != 1) {
+            throw new NativeError("Expected a string of one character.");
+        }
+        return ((CharSequence) value).charAt(0);
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (!(value instanceof Boolean)) {
+            throw new NativeError("Expected a boolean.");
+        }
+        return (boolean) value;
+    }
+
+    private static Object toReference(Object value, Class<?> type) {
+        if (value instanceof JavaObject) {
+            value = ((JavaObject) value).value;
+        } else if (value instanceof Rope) {
+            value = value.toString();
+        } else if (value instanceof Double && type != Double.class) {
+            if (type == Float.class) return toFloat(value);
+            if (type == Long.class) return toLong(value);
+            if (type == Integer.class) return toInt(value);
+            if (type == Short.class) return toShort(value);
+            if (type == Byte.class) return toByte(value);
+        } else if (type == Character.class && Rope.isString(value)) {
+            return toChar(value);
+        }
+        if (value != null && !type.isInstance(value)) {
+            throw new NativeError("Expected " + type.getName() + ".");
+        }
+        return value;
+    }
+
+    private static double number(Object value) {
+        if (!(value instanceof Double)) {
+            throw new NativeError("Expected a number.");
+        }
+        return (double) value;
+    }
+
+    private static double integer(Object value, double min, double max) {
+        double number = number(value);
+        if (number != Math.rint(number) || number < min || number > max) {
+            throw new NativeError("Expected an integer in range.");
+        }
+        return number;
+    }
+
+    // Java results as Lox values. Lox values passed through Java come back
+    // unchanged. A number a double cannot hold exactly, such as a long
+    // above 2^53, is an error rather than silently a different number.
+    private static Object fromJava(JavaInterop interop, Object value) {
+        if (value == null || value instanceof Double || value instanceof Boolean
+            || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (!isExact((Number) value, number)) {
+                throw new NativeError("Java number " + value
+                    + " cannot be represented exactly as a Lox number.");
+            }
+            return number;
+        }
+        if (value instanceof Character) {
+            return value.toString();
+        }
+        if (value instanceof LoxCallable || value instanceof LoxInstance
+            || value instanceof LoxArray || value instanceof LoxMap
+            || value instanceof LoxTask || value instanceof Rope
+            || value instanceof JavaClass || value instanceof JavaObject) {
+            return value;
+        }
+        return new JavaObject(interop, value);
+    }
+
+    private static boolean isExact(Number value, double number) {
+        if (value instanceof Integer || value instanceof Short
+            || value instanceof Byte || value instanceof Float) {
+            return true;
+        }
+        if (value instanceof Long) {
+            // 2^63 itself would saturate back to Long.MAX_VALUE.
+            return number < 0x1p63 && (long) number == value.longValue();
+        }
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            return false;
+        }
+        try {
+            return new BigDecimal(number)
+                .compareTo(new BigDecimal(value.toString())) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The body of a function that has not been parsed yet.
+//
+// With -Dlox.lazy=true the parser only matches the braces and parentheses
+// of top-level functions and methods, and keeps where their tokens are.
+// The first call parses and resolves the body, so starting a large script
+// costs time for the code it runs rather than all the code it contains.
+// Syntax errors inside a body are then reported when it is first called.
+//
+// Whether a top-level function is pure is decided on its first call too,
+// by the rules of Resolver.markPure(). That parses the bodies of the
+// top-level functions it reads, and of the ones they read, ahead of their
+// own first calls. The program's tokens stay in memory while any of its
+// bodies is still unparsed.
+final class LazyBody {
+    // What every lazy body in one compiled source shares.
+    static final class Source {
+        final List<Token> tokens;
+        final SymbolTable symbols;
+        // Where the source came from, for imports in a body. May be null.
+        final Path file;
+        // The top-level functions by name, null for a name declared more
+        // than once. Guarded by this.
+        private final Map<String, LazyBody> functions = new HashMap<>();
+
+        Source(List<Token> tokens, SymbolTable symbols, Path file) {
+            this.tokens = tokens;
+            this.symbols = symbols;
+            this.file = file;
+        }
+
+        private synchronized void declare(String name, LazyBody body) {
+            functions.put(name, functions.containsKey(name) ? null : body);
+        }
+
+        // Decides for the body and every undecided function it reaches
+        // through the globals it reads. As in Resolver.markPure(), they start
+        // out pure, and the ones reading anything but a pure function
+        // declared once are marked impure until nothing changes.
+        private synchronized void decide(LazyBody root) {
+            Set<LazyBody> reached = new LinkedHashSet<>();
+            Set<LazyBody> impure = new HashSet<>();
+            Deque<LazyBody> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                LazyBody body = pending.pop();
+                if (body.decided || !reached.add(body)) {
+                    continue;
+                }
+                Set<String> globals = body.globals();
+                if (globals == null) {
+                    impure.add(body);
+                    continue;
+                }
+                for (String global : globals) {
+                    if (functions.get(global) != null) {
+                        pending.push(functions.get(global));
+                    }
+                }
+            }
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (LazyBody body : reached) {
+                    if (impure.contains(body)) {
+                        continue;
+                    }
+                    for (String global : body.globals) {
+                        LazyBody callee = functions.get(global);
+                        if (callee == null || impure.contains(callee)
+                            || (callee.decided && !callee.function.pure)) {
+                            impure.add(body);
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            for (LazyBody body : reached) {
+                if (!impure.contains(body)) {
+                    int[] dependencies = new int[body.globals.size()];
+                    int i = 0;
+                    for (String global : body.globals) {
+                        dependencies[i++] = symbols.intern(global);
+                    }
+                    body.function.dependencies = dependencies;
+                    body.function.pure = true;
+                }
+                body.decided = true;
+            }
+        }
+    }
+
+    private final Source source;
+    // Tokens between the braces.
+    private final int start;
+    private final int end;
+    private final Token name;
+    private final List<Token> parameters;
+    // Set for methods, which resolve with "this" and maybe "super" in scope.
+    private final boolean method;
+    private final boolean subclass;
+    private volatile List<Stmt> body;
+    // Guarded by this. Set if parsing or resolving failed.
+    private String error;
+    // Set by the resolver for a top-level function, which may be pure.
+    private Stmt.Function function;
+    // The globals the body reads, once parsed. Null unless it is a
+    // top-level function that does nothing impure. Set before body.
+    private Set<String> globals;
+    // Set once source has decided whether the function is pure.
+    private volatile boolean decided;
+
+    LazyBody(Source source, int start, int end, Token name,
+             List<Token> parameters, boolean method, boolean subclass) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.name = name;
+        this.parameters = parameters;
+        this.method = method;
+        this.subclass = subclass;
+    }
+
+    void declare(Stmt.Function function) {
+        this.function = function;
+        source.declare(name.lexeme, this);
+    }
+
+    // Whether the function is pure. The first call decides, parsing the
+    // body if it has not been yet.
+    boolean isPure() {
+        if (!decided) {
+            source.decide(this);
+        }
+        return function != null && function.pure;
+    }
+
+    // Parses the body for Source.decide() and returns what it reads.
+    private Set<String> globals() {
+        if (function == null) {
+            return null;
+        }
+        try {
+            body();
+        } catch (NativeError error) {
+            // Reported again when the function is called.
+            return null;
+        }
+        return globals;
+    }
+
+    List<Stmt> body() {
+        List<Stmt> body = this.body;
+        return body != null ? body : parse();
+    }
+
+    private synchronized List<Stmt> parse() {
+        if (body != null) {
+            return body;
+        }
+        if (error == null) {
+            ErrorReporter reporter = new ErrorReporter();
+            List<Token> tokens = new ArrayList<>(source.tokens.subList(start, end));
+            tokens.add(new Token(TokenType.EOF, "",
+                null, source.tokens.get(end).line));
+            Resolver resolver = new Resolver(source.symbols, reporter);
+            resolver.beginLazy(parameters, method, subclass,
+                method && name.lexeme.equals("init"));
+            Parser parser = new Parser(tokens, reporter, null, resolver);
+            List<Stmt> statements = parser.parse();
+            for (Stmt.Import stmt : parser.imports()) {
+                stmt.file = ModuleLoader.resolve(source.file,
+                    (String) stmt.path.literal);
+            }
+            if (!reporter.hadError()) {
+                globals = resolver.lazyGlobals();
+                body = statements;
+                return statements;
+            }
+            error = "Error in body of '" + name.lexeme + "':\n"
+                + String.join("\n", reporter.errors());
+        }
+        throw new NativeError(error);
+    }
+}
@@ -0,0 +1,177 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Reads a file or standard input one line at a time, for the open(),
+// stdin() and readLine() natives.
+//
+// Only the current block of input is held, never the whole file, so a
+// script can stream through files much larger than the heap. Small files and
+// standard input are read through a 64 KB buffer. Files of a megabyte or more
+// are memory-mapped a window at a time instead, which skips the copy from the
+// kernel into the buffer.
+//
+// Lines are split on '\n' bytes, dropping a '\r' before it, and decoded in
+// the default charset like source files are. That is only correct for
+// charsets where '\n' is a single byte that never appears inside another
+// character, which covers ASCII, Latin-1 and UTF-8.
+final class LineReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final class Stdin {
+        static final LineReader INSTANCE = new LineReader(
+            new FileInputStream(FileDescriptor.in).getChannel(), null);
+    }
+
+    private final Charset charset = Charset.defaultCharset();
+    private final ReadableByteChannel channel;
+    // Set when the file is mapped rather than read.
+    private final FileChannel file;
+    // Guarded by this. The unread input is between position and limit.
+    private ByteBuffer buffer;
+    // Where the buffer starts in a mapped file.
+    private long offset = 0;
+    private byte[] line = new byte[256];
+    private boolean eof = false;
+
+    private LineReader(ReadableByteChannel channel, FileChannel file) {
+        this.channel = channel;
+        this.file = file;
+        if (file == null) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.allocate(0);
+        }
+    }
+
+    static LineReader open(Object path) {
+        if (!Rope.isString(path)) {
+            throw new NativeError("File name must be a string.");
+        }
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(path.toString()),
+                StandardOpenOption.READ);
+            boolean map = channel.size() >= MAP_THRESHOLD;
+            return new LineReader(channel, map ? channel : null);
+        } catch (IOException | RuntimeException e) {
+            throw new NativeError("Cannot open '" + path + "': " + e.getMessage());
+        }
+    }
+
+    static LineReader stdin() {
+        return Stdin.INSTANCE;
+    }
+
+    // The next line without its terminator, or null at the end of the input.
+    synchronized String readLine() {
+        int scanned = buffer.position();
+        while (true) {
+            int start = buffer.position();
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    buffer.position(i + 1);
+                    return decode(start, i);
+                }
+            }
+            int unread = buffer.limit() - start;
+            if (eof || !fill()) {
+                eof = true;
+                if (!buffer.hasRemaining()) {
+                    close();
+                    return null;
+                }
+                // A last line with no newline.
+                start = buffer.position();
+                buffer.position(buffer.limit());
+                return decode(start, buffer.limit());
+            }
+            // The unread input now starts at the new position; only what
+            // came in after it still needs scanning.
+            scanned = buffer.position() + unread;
+        }
+    }
+
+    // Makes more input available after what is unread, keeping the unread
+    // part. False at the end of the input.
+    private boolean fill() {
+        try {
+            if (file != null) {
+                long position = offset + buffer.position();
+                long remaining = file.size() - position;
+                int unread = buffer.remaining();
+                if (remaining <= unread) {
+                    return false;
+                }
+                // A line longer than a window gets a bigger one.
+                long size = Math.min(remaining,
+                    Math.max(WINDOW_SIZE, 2L * unread));
+                if (size > Integer.MAX_VALUE) {
+                    throw new NativeError("Line too long.");
+                }
+                buffer = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+                offset = position;
+                return true;
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read > 0;
+        } catch (IOException e) {
+            throw new NativeError("Cannot read input: " + e.getMessage());
+        }
+    }
+
+    private String decode(int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        int length = end - start;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start,
+                length, charset);
+        }
+        if (line.length < length) {
+            line = new byte[Math.max(length, 2 * line.length)];
+        }
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position(start);
+        bytes.get(line, 0, length);
+        return new String(line, 0, length, charset);
+    }
+
+    // Standard input stays open for other readers in the process.
+    synchronized void close() {
+        eof = true;
+        buffer = ByteBuffer.allocate(0);
+        if (this == Stdin.INSTANCE) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more will be read either way.
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<reader>";
+    }
+}
@@ -3,93 +3,164 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
-  
-    static boolean hadError = false;
-    
-    static boolean hadRuntimeError = false;
-
-    private static final Interpreter interpreter = new Interpreter();
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64); 
+        LoxEngine engine = new LoxEngine();
+        if (args.length > 0 && args[0].equals("--server") && args.length <= 2) {
+            int port = args.length == 2
+                ? Integer.parseInt(args[1]) : LoxServer.DEFAULT_PORT;
+            new LoxServer(engine, port).serve();
+        } else if (args.length > 1 && args[0].equals("--batch")) {
+            runBatch(engine, args);
+        } else if (args.length == 3 && args[0].equals("--profile")) {
+            profileFile(engine, args[1], args[2]);
+        } else if (args.length == 2 && args[0].equals("--allocations")) {
+            profileAllocations(engine, args[1]);
+        } else if (args.length == 2 && args[0].equals("--heap-report")) {
+            reportHeap(engine, args[1]);
+        } else if (args.length > 1 || (args.length == 1 && args[0].startsWith("--"))) {
+            usage();
         } else if (args.length == 1) {
-            runFile(args[0]);
+            runFile(engine, args[0]);
         } else {
-            runPrompt();
+            runPrompt(engine);
         }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError) {
-            System.exit(65);
+    private static void usage() {
+        System.out.println("Usage: jlox [script]");
+        System.out.println("       jlox --profile out.collapsed script");
+        System.out.println("       jlox --allocations script");
+        System.out.println("       jlox --heap-report script");
+        System.out.println("       jlox --server [port]");
+        System.out.println(
+            "       jlox --batch [--jobs n] [--out dir] paths...");
+        System.exit(64); 
+    }
+
+    private static void runBatch(LoxEngine engine, String[] args)
+        throws IOException {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Path out = null;
+        List<String> paths = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--jobs") && i + 1 < args.length) {
+                jobs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = Paths.get(args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
         }
-        if (hadRuntimeError) {
-            System.exit(70);
+        if (paths.isEmpty() || jobs < 1) {
+            usage();
         }
+        System.exit(new LoxBatch(engine, jobs, out).run(paths));
     }
 
-    private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
-
-        for (;;) { 
-            System.out.print("> ");
-            run(reader.readLine());
+    private static void runFile(LoxEngine engine, String path)
+        throws IOException {
+        int status = runFile(engine, engine.createContext(), path);
+        if (status != 0) {
+            System.exit(status);
         }
     }
 
-    private static void run(String source) {
-        // Scan
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        // Parse
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-        if (hadError) {
-            return;
+    // Runs the script under a sampling profiler, writes the samples as
+    // collapsed stacks for flame graph tools and prints the hottest
+    // functions and lines to stderr.
+    private static void profileFile(LoxEngine engine, String output,
+        String path) throws IOException {
+        LoxContext context = engine.createContext();
+        LoxProfiler profiler = new LoxProfiler(1);
+        context.setProfiler(profiler);
+        profiler.start();
+        int status;
+        try {
+            status = runFile(engine, context, path);
+        } finally {
+            profiler.stop();
+        }
+        try (Writer writer = Files.newBufferedWriter(Paths.get(output))) {
+            profiler.writeCollapsed(writer);
+        }
+        profiler.printHotspots(System.err, 10);
+        if (status != 0) {
+            System.exit(status);
         }
-        // Resolver - Semantic analysis of variable declarations and assignments.
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-        if (hadError) {
-            return;
+    }
+
+    // Runs the script counting the objects each line makes the interpreter
+    // allocate, and prints the worst lines to stderr.
+    private static void profileAllocations(LoxEngine engine, String path)
+        throws IOException {
+        LoxContext context = engine.createContext();
+        LoxAllocationProfiler allocations = new LoxAllocationProfiler();
+        context.setAllocationProfiler(allocations);
+        int status = runFile(engine, context, path);
+        allocations.printTopSites(System.err, 10);
+        if (status != 0) {
+            System.exit(status);
         }
-        // Interpret
-        interpreter.interpret(statements);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    // Runs the script and prints what its globals retain to stderr, even if
+    // it stopped with an error.
+    private static void reportHeap(LoxEngine engine, String path)
+        throws IOException {
+        LoxContext context = engine.createContext();
+        int status = runFile(engine, context, path);
+        System.err.print(context.heapReport());
+        if (status != 0) {
+            System.exit(status);
+        }
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-            "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+    private static int runFile(LoxEngine engine, LoxContext context,
+        String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        try {
+            String source = new String(bytes, StandardCharsets.UTF_8);
+            engine.run(engine.compile(source, Paths.get(path)), context);
+            return 0;
+        } catch (LoxException error) {
+            System.err.println(error.getMessage());
+            return error.exitCode();
+        }
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    private static void runPrompt(LoxEngine engine) throws IOException {
+        InputStreamReader input = new InputStreamReader(System.in);
+        BufferedReader reader = new BufferedReader(input);
+        LoxContext context = engine.createContext();
+
+        for (;;) { 
+            System.out.print("> ");
+            System.out.flush();
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            try {
+                run(engine, context, line);
+            } catch (LoxException error) {
+                System.err.println(error.getMessage());
+            }
         }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    private static void run(LoxEngine engine, LoxContext context,
+        String source) throws LoxException {
+        engine.run(engine.compile(source), context);
     }
 
-}
\ No newline at end of file
+}
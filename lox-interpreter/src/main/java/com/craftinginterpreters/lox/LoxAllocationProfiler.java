@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the objects the interpreter allocates on behalf of each line of a
+ * Lox program: environments and their hash maps, boxed numbers, methods
+ * bound to an instance, and argument lists.
+ *
+ * <p>Attach one to a context with {@link LoxContext#setAllocationProfiler}.
+ * Tasks the context spawns afterwards report to the same profiler.
+ */
+public final class LoxAllocationProfiler {
+
+    enum Kind {
+        ENVIRONMENT("environments", 24),
+        HASH_MAP("hash maps", 128),
+        BOXED_DOUBLE("numbers", 16),
+        BOUND_METHOD("bound methods", 32),
+        ARGUMENT_LIST("argument lists", 80);
+
+        final String label;
+        // Rough shallow size with compressed pointers, for ranking only.
+        final int bytes;
+
+        Kind(String label, int bytes) {
+            this.label = label;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    // Indexed by line, then by kind. Guarded by this.
+    private long[][] counts = new long[64][];
+
+    private synchronized void record(Kind kind, int line) {
+        if (line >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(line + 1, counts.length * 2));
+        }
+        long[] site = counts[line];
+        if (site == null) {
+            site = new long[KINDS.length];
+            counts[line] = site;
+        }
+        site[kind.ordinal()]++;
+    }
+
+    // An environment always comes with the map holding its variables.
+    void recordEnvironment(int line) {
+        record(Kind.ENVIRONMENT, line);
+        record(Kind.HASH_MAP, line);
+    }
+
+    void recordNumber(int line) {
+        record(Kind.BOXED_DOUBLE, line);
+    }
+
+    // Binding a method also gives it an environment holding "this".
+    void recordBoundMethod(int line) {
+        record(Kind.BOUND_METHOD, line);
+        recordEnvironment(line);
+    }
+
+    void recordArguments(int line) {
+        record(Kind.ARGUMENT_LIST, line);
+    }
+
+    synchronized long count(Kind kind, int line) {
+        long[] site = line < counts.length ? counts[line] : null;
+        return site == null ? 0 : site[kind.ordinal()];
+    }
+
+    /**
+     * Prints the lines responsible for the most allocated bytes, by the
+     * estimated shallow size of each kind of object.
+     */
+    public synchronized void printTopSites(PrintStream out, int limit) {
+        List<Integer> lines = new ArrayList<>();
+        long[] total = new long[KINDS.length];
+        for (int line = 0; line < counts.length; line++) {
+            if (counts[line] == null) {
+                continue;
+            }
+            lines.add(line);
+            for (Kind kind : KINDS) {
+                total[kind.ordinal()] += counts[line][kind.ordinal()];
+            }
+        }
+        lines.sort((a, b) -> Long.compare(bytes(counts[b]), bytes(counts[a])));
+
+        StringBuilder header = new StringBuilder(String.format("%8s %10s", "line", "~bytes"));
+        StringBuilder totals = new StringBuilder(String.format("%8s %10d", "total", bytes(total)));
+        for (Kind kind : KINDS) {
+            header.append(String.format(" %14s", kind.label));
+            totals.append(String.format(" %14d", total[kind.ordinal()]));
+        }
+        out.println(header);
+        for (int line : lines.subList(0, Math.min(limit, lines.size()))) {
+            StringBuilder row = new StringBuilder(
+                String.format("%8s %10d", line == 0 ? "-" : line, bytes(counts[line])));
+            for (Kind kind : KINDS) {
+                row.append(String.format(" %14d", counts[line][kind.ordinal()]));
+            }
+            out.println(row);
+        }
+        out.println(totals);
+    }
+
+    private static long bytes(long[] site) {
+        long bytes = 0;
+        for (Kind kind : KINDS) {
+            bytes += site[kind.ordinal()] * kind.bytes;
+        }
+        return bytes;
+    }
+}
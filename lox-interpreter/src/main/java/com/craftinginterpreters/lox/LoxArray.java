@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A growable array value, created by the array() native and used through
+// get(), set(), push(), pop() and len().
+//
+// Elements live in one contiguous block. While every element is a number
+// that block is a double[]; storing anything else converts it to an Object[]
+// once, for good.
+//
+// Tasks commonly fill in an array together, so every operation locks the
+// array. Uncontended that is a single atomic instruction.
+final class LoxArray {
+    private double[] numbers = new double[8];
+    // Non-null once the array has held something other than a number.
+    private Object[] values = null;
+    private int size = 0;
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized Object get(Object index) {
+        int i = index(index, size);
+        return values == null ? (Object) numbers[i] : values[i];
+    }
+
+    synchronized void set(Object index, Object value) {
+        int i = index(index, size);
+        if (values == null && value instanceof Double) {
+            numbers[i] = (double) value;
+            return;
+        }
+        generalize();
+        values[i] = value;
+    }
+
+    synchronized void push(Object value) {
+        if (values == null && value instanceof Double) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size++] = (double) value;
+            return;
+        }
+        generalize();
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    synchronized Object pop() {
+        if (size == 0) {
+            throw new NativeError("Cannot pop from an empty array.");
+        }
+        size--;
+        if (values == null) {
+            return numbers[size];
+        }
+        Object value = values[size];
+        values[size] = null;
+        return value;
+    }
+
+    // A copy of the elements, for tools that walk the heap.
+    synchronized Object[] elements() {
+        Object[] elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            elements[i] = values == null ? (Object) numbers[i] : values[i];
+        }
+        return elements;
+    }
+
+    // Bytes used by the backing block, whichever it is.
+    synchronized long storageBytes() {
+        return values == null ? 8L * numbers.length : 4L * values.length;
+    }
+
+    private void generalize() {
+        if (values != null) {
+            return;
+        }
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    static int index(Object index, int size) {
+        if (!(index instanceof Double)) {
+            throw new NativeError("Index must be a number.");
+        }
+        double value = (double) index;
+        int i = (int) value;
+        if (i != value || i < 0 || i >= size) {
+            throw new NativeError("Index out of bounds.");
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return Interpreter.stringify(this);
+    }
+}
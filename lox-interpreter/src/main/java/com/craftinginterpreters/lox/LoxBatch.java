@@ -0,0 +1,208 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs many scripts in one JVM, each in its own {@link LoxContext}, on a
+ * bounded pool of worker threads.
+ *
+ * <p>Every script's output is captured. With an output directory it is
+ * written next to the script's relative path as {@code .out} and {@code .err}
+ * files; otherwise it is printed after the run, grouped by script in input
+ * order. A summary with each script's status and time follows.
+ *
+ * <p>There is no per-script timeout. The interpreter has no point at which
+ * a running script can be stopped, so a script that never finishes keeps its
+ * worker, and the batch, waiting.
+ */
+public final class LoxBatch {
+    private final LoxEngine engine;
+    private final int jobs;
+    private final Path outputDirectory;
+    // Where output is printed without an output directory, and the summary.
+    private final PrintStream out;
+    private final PrintStream err;
+
+    public LoxBatch(LoxEngine engine, int jobs, Path outputDirectory) {
+        this(engine, jobs, outputDirectory, System.out, System.err);
+    }
+
+    LoxBatch(LoxEngine engine, int jobs, Path outputDirectory,
+             PrintStream out, PrintStream err) {
+        this.engine = engine;
+        this.jobs = jobs;
+        this.outputDirectory = outputDirectory;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Runs every .lox file under the given files and directories and returns
+     * the worst status any of them exited with.
+     */
+    public int run(List<String> paths) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        for (String path : paths) {
+            collect(Paths.get(path), scripts);
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<Result>> pending = new ArrayList<>();
+            for (Path script : scripts) {
+                pending.add(workers.submit(() -> runScript(script)));
+            }
+            for (Future<Result> result : pending) {
+                results.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        long wall = System.nanoTime() - start;
+
+        if (outputDirectory != null) {
+            for (Result result : results) {
+                result.write(outputDirectory);
+            }
+        } else {
+            for (Result result : results) {
+                result.print(out, err);
+            }
+        }
+        return summarize(results, wall);
+    }
+
+    private static void collect(Path path, List<Path> scripts)
+        throws IOException {
+        if (!Files.isDirectory(path)) {
+            scripts.add(path);
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            scripts.addAll(files
+                .filter(file -> file.toString().endsWith(".lox"))
+                .filter(Files::isRegularFile)
+                .sorted()
+                .collect(Collectors.toList()));
+        }
+    }
+
+    private Result runScript(Path script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream errors = printStream(err);
+        long start = System.nanoTime();
+        int status;
+        try {
+            String source = new String(Files.readAllBytes(script),
+                StandardCharsets.UTF_8);
+            engine.run(engine.compile(source, script),
+                engine.createContext(printStream(out)));
+            status = 0;
+        } catch (IOException e) {
+            errors.println("Cannot read " + script + ".");
+            status = 66;
+        } catch (LoxException error) {
+            errors.println(error.getMessage());
+            status = error.exitCode();
+        } catch (StackOverflowError error) {
+            errors.println("Stack overflow.");
+            status = 70;
+        }
+        return new Result(script, status, System.nanoTime() - start,
+            out.toByteArray(), err.toByteArray());
+    }
+
+    private int summarize(List<Result> results, long wall) {
+        int worst = 0;
+        int failed = 0;
+        long total = 0;
+        out.println();
+        out.println(String.format("%6s %8s  %s",
+            "status", "time", "script"));
+        for (Result result : results) {
+            out.println(String.format("%6d %6dms  %s",
+                result.status, millis(result.elapsed), result.script));
+            worst = Math.max(worst, result.status);
+            total += result.elapsed;
+            if (result.status != 0) {
+                failed++;
+            }
+        }
+        out.println(String.format(
+            "%d scripts, %d failed, %dms wall, %dms total script time.",
+            results.size(), failed, millis(wall), millis(total)));
+        return worst;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static PrintStream printStream(ByteArrayOutputStream bytes) {
+        try {
+            return new PrintStream(bytes, true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final class Result {
+        final Path script;
+        final int status;
+        final long elapsed;
+        final byte[] out;
+        final byte[] err;
+
+        Result(Path script, int status, long elapsed, byte[] out, byte[] err) {
+            this.script = script;
+            this.status = status;
+            this.elapsed = elapsed;
+            this.out = out;
+            this.err = err;
+        }
+
+        void print(PrintStream stdout, PrintStream stderr) {
+            if (out.length == 0 && err.length == 0) {
+                return;
+            }
+            stdout.println("==> " + script + " <==");
+            stdout.write(out, 0, out.length);
+            stdout.flush();
+            stderr.write(err, 0, err.length);
+            stderr.flush();
+        }
+
+        void write(Path directory) throws IOException {
+            Path base = directory.resolve(script.isAbsolute()
+                ? script.getRoot().relativize(script) : script).normalize();
+            if (base.getParent() != null) {
+                Files.createDirectories(base.getParent());
+            }
+            Files.write(Paths.get(base + ".out"), out);
+            Files.write(Paths.get(base + ".err"), err);
+        }
+    }
+}
@@ -2,10 +2,11 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 import java.util.Map;
+import jdk.jfr.FlightRecorder;
 
 class LoxClass implements LoxCallable {
     final String name;
-    private final Map<String, LoxFunction> methods;
+    final Map<String, LoxFunction> methods;
     final LoxClass superclass; 
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
@@ -28,11 +29,27 @@ class LoxClass implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        InstantiationEvent event = FlightRecorder.isInitialized()
+            ? new InstantiationEvent() : null;
+        boolean recording = event != null && event.isEnabled();
+        if (recording) {
+            event.begin();
+        }
         LoxInstance instance = new LoxInstance(this);
         LoxFunction initializer = methods.get("init");
         if (initializer != null) {
+            if (interpreter.allocations != null) {
+                interpreter.allocations.recordBoundMethod(interpreter.line);
+            }
             initializer.bind(instance).call(interpreter, arguments);
         }
+        if (recording) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.className = name;
+                event.commit();
+            }
+        }
         return instance;
     }
   
@@ -0,0 +1,45 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The source has syntax or resolution errors. The message holds one line per
+ * error, in the order they were found.
+ */
+public final class LoxCompileException extends LoxException {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> errors;
+    private final String module;
+
+    LoxCompileException(List<String> errors) {
+        super(String.join("\n", errors));
+        this.errors = Collections.unmodifiableList(errors);
+        this.module = null;
+    }
+
+    LoxCompileException(String module, List<String> errors) {
+        super("Cannot compile module '" + module + "':\n"
+            + String.join("\n", errors));
+        this.errors = errors;
+        this.module = module;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * The path of the imported module the errors are in, or null if they are
+     * in the program being compiled. Line numbers are the module's own.
+     */
+    public String getModule() {
+        return module;
+    }
+
+    @Override
+    public int exitCode() {
+        return 65;
+    }
+}
@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * An isolated place to run programs: its own globals and its own output.
+ * Programs run in the same context see each other's globals, the way lines
+ * typed into the REPL do.
+ *
+ * <p>A context must only be used by one thread at a time. Different contexts
+ * share nothing and can run in parallel.
+ */
+public final class LoxContext {
+    final Interpreter interpreter;
+
+    LoxContext(LoxEngine engine, OutputSink out) {
+        this.interpreter = new Interpreter(engine, out);
+    }
+
+    /**
+     * Reports this context's calls, and those of the tasks it spawns from
+     * now on, to the given profiler. Pass null to stop.
+     */
+    public void setProfiler(LoxProfiler profiler) {
+        interpreter.profile(profiler);
+    }
+
+    /**
+     * Counts the interpreter's allocations in this context, and in the tasks
+     * it spawns from now on, per line of Lox source. Pass null to stop.
+     */
+    public void setAllocationProfiler(LoxAllocationProfiler allocations) {
+        interpreter.allocations = allocations;
+    }
+
+    /**
+     * Describes the memory retained by the values reachable from this
+     * context's globals: totals per kind of value, the largest objects and
+     * the closures keeping the most alive.
+     */
+    public String heapReport() {
+        return HeapReport.of(interpreter);
+    }
+}
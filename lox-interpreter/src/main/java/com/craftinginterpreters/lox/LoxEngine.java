@@ -0,0 +1,167 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Entry point for embedding Lox.
+ *
+ * <pre>
+ * LoxEngine engine = new LoxEngine();
+ * LoxProgram program = engine.compile(source);
+ * LoxContext context = engine.createContext();
+ * engine.run(program, context);
+ * </pre>
+ *
+ * <p>An engine may be shared by any number of threads. Compile a script once
+ * and run the resulting program in as many contexts as needed.
+ */
+public final class LoxEngine {
+
+    // Numbers global names so compiled programs can index any context's
+    // globals directly.
+    final SymbolTable symbols = new SymbolTable();
+    // Java classes scripts may use. See JavaInterop.
+    final JavaInterop java = new JavaInterop();
+    // Compiled modules, shared by every context. See ModuleLoader.
+    final ModuleLoader modules = new ModuleLoader(this);
+    // Set by -Dlox.lazy=true when the engine is created. See LazyBody.
+    final boolean lazy = Boolean.getBoolean("lox.lazy");
+
+    public LoxEngine() {
+        LoxMetrics.register();
+    }
+
+    /**
+     * Lets scripts run by this engine load the named Java class with
+     * {@code java("name")}, call its constructors and public methods and
+     * read its public static fields. Classes named in the comma-separated
+     * {@code lox.java.allow} system property are allowed from the start.
+     */
+    public void allowJavaClass(String className) {
+        java.allow(className);
+    }
+
+    /**
+     * Compiles source that did not come from a file. Its imports are looked
+     * up relative to the working directory.
+     */
+    public LoxProgram compile(String source) throws LoxCompileException {
+        return compile(source, null);
+    }
+
+    /**
+     * Compiles the source of the given file. Its imports are looked up
+     * relative to the file's directory, and start compiling in parallel as
+     * soon as the source is parsed.
+     */
+    public LoxProgram compile(String source, Path file)
+        throws LoxCompileException {
+        ErrorReporter reporter = new ErrorReporter();
+        long start = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        // Scan
+        Scanner scanner = new Scanner(source, reporter);
+        List<Token> tokens = scanner.scanTokens();
+        long scanned = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        // Parse, resolving each node as it is built.
+        Resolver resolver = new Resolver(symbols, reporter);
+        Parser parser = new Parser(tokens, reporter,
+            lazy ? new LazyBody.Source(tokens, symbols, file) : null,
+            resolver);
+        List<Stmt> statements = parser.parse();
+        long parsed = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.scanNanos.add(scanned - start);
+            LoxMetrics.parseNanos.add(parsed - scanned);
+        }
+        if (reporter.hadError()) {
+            throw compileError(reporter);
+        }
+        for (Stmt.Import stmt : parser.imports()) {
+            stmt.file = ModuleLoader.resolve(file, (String) stmt.path.literal);
+            modules.load(stmt.file);
+        }
+        // Resolver - The parser has resolved every variable. What is left
+        // is working out which functions are pure. Modules time their own
+        // compiles, so the timer starts after they are loaded.
+        long resolving = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        resolver.markPure();
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.resolveNanos.add(System.nanoTime() - resolving);
+        }
+        if (reporter.hadError()) {
+            throw compileError(reporter);
+        }
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.programsCompiled.increment();
+        }
+        return new LoxProgram(symbols, statements);
+    }
+
+    private static LoxCompileException compileError(ErrorReporter reporter) {
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.compileErrors.add(reporter.errors().size());
+        }
+        return new LoxCompileException(reporter.errors());
+    }
+
+    /**
+     * Creates a context that prints to standard output, through the shared
+     * buffer of {@link LoxOutput#stdout()}.
+     */
+    public LoxContext createContext() {
+        return createContext(LoxOutput.stdout());
+    }
+
+    public LoxContext createContext(PrintStream out) {
+        return new LoxContext(this, new PrintStreamSink(out));
+    }
+
+    public LoxContext createContext(LoxOutput out) {
+        return new LoxContext(this, out);
+    }
+
+    public void run(LoxProgram program, LoxContext context)
+        throws LoxRuntimeException, LoxCompileException {
+        if (program.symbols != symbols
+            || context.interpreter.globals.symbols != symbols) {
+            throw new IllegalArgumentException(
+                "Program and context must come from this engine.");
+        }
+        long start = LoxMetrics.ENABLED ? System.nanoTime() : 0;
+        try {
+            context.interpreter.interpret(program);
+            RuntimeError unobserved =
+                LoxTask.awaitAll(context.interpreter.tasks);
+            if (unobserved != null) throw unobserved;
+        } catch (RuntimeError error) {
+            if (LoxMetrics.ENABLED) {
+                LoxMetrics.runtimeErrors.increment();
+            }
+            if (FlightRecorder.isInitialized()) {
+                RuntimeErrorEvent event = new RuntimeErrorEvent();
+                if (event.shouldCommit()) {
+                    event.message = error.getMessage();
+                    event.line = error.token.line;
+                    event.commit();
+                }
+            }
+            throw new LoxRuntimeException(error);
+        } catch (ModuleLoader.CompileError error) {
+            // A module the program imports has syntax or resolution errors.
+            throw error.error;
+        } finally {
+            // Tasks still running after an error finish too, so whatever
+            // the program printed goes out before the caller reports the
+            // error or exits.
+            LoxTask.awaitAll(context.interpreter.tasks);
+            context.interpreter.flushOutput();
+            if (LoxMetrics.ENABLED) {
+                LoxMetrics.interpretNanos.add(System.nanoTime() - start);
+                LoxMetrics.programsRun.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A script failed to compile or to run.
+ */
+public abstract class LoxException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    LoxException(String message) {
+        super(message);
+    }
+
+    /**
+     * The status jlox exits with when a script fails this way.
+     */
+    public abstract int exitCode();
+}
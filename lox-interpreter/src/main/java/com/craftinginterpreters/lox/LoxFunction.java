@@ -1,29 +1,46 @@
 package com.craftinginterpreters.lox;
 
 import java.util.List;
+import jdk.jfr.FlightRecorder;
 
 class LoxFunction implements LoxCallable {
 
-    private final Environment closure;
+    final Environment closure;
 
-    private final Stmt.Function declaration;
+    // The globals of the program that declared it, which may be a module's.
+    final GlobalEnvironment globals;
+
+    final Stmt.Function declaration;
 
     private final boolean isInitializer;
+
+    // Set when the resolver found the function pure. See MemoTable. A lazy
+    // body is only checked on the first call, by lazyMemo().
+    private volatile MemoTable memo;
     
     LoxFunction(
         Stmt.Function declaration, 
         Environment closure, 
+        GlobalEnvironment globals,
         boolean isInitializer
     ) {
         this.isInitializer = isInitializer;
         this.closure = closure;
+        this.globals = globals;
         this.declaration = declaration;
+        this.memo = declaration.pure && MemoTable.SIZE > 0
+            ? new MemoTable() : null;
     }
 
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(closure);
         environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, environment, globals, isInitializer);
+    }
+
+    // The function is about to run on another thread.
+    void share() {
+        closure.share();
     }
 
     @Override
@@ -33,20 +50,108 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.functionCalls.increment();
+        }
+        MemoTable memo = this.memo;
+        if (memo == null && declaration.lazy != null && MemoTable.SIZE > 0) {
+            memo = lazyMemo();
+        }
+        if (memo != null && isMemoizable(interpreter, arguments)) {
+            List<Object> key = MemoTable.key(arguments);
+            Object result = memo.get(key);
+            if (result == MemoTable.MISSING) {
+                result = run(interpreter, arguments);
+                memo.put(key, result);
+            }
+            return result;
+        }
+        return run(interpreter, arguments);
+    }
+
+    private MemoTable lazyMemo() {
+        if (!declaration.lazy.isPure()) {
+            return null;
+        }
+        synchronized (this) {
+            if (memo == null) {
+                memo = new MemoTable();
+            }
+            return memo;
+        }
+    }
+
+    // The function's globals must still name the functions the resolver
+    // saw, or a remembered result could be stale.
+    private boolean isMemoizable(Interpreter interpreter,
+                                 List<Object> arguments) {
+        for (int symbol : declaration.dependencies) {
+            if (!globals.isConstant(symbol)) {
+                return false;
+            }
+        }
+        return MemoTable.canKey(arguments);
+    }
+
+    private Object run(Interpreter interpreter, List<Object> arguments) {
+        CallStack stack = interpreter.callStack;
+        if (stack != null) {
+            stack.push(declaration.name.lexeme, declaration.name.line);
+        }
+        // Only timed while Flight Recorder is recording these events. Event
+        // classes are not touched before it starts, as loading the first one
+        // sets up the whole recorder.
+        FunctionCallEvent event = FlightRecorder.isInitialized()
+            ? new FunctionCallEvent() : null;
+        boolean recording = event != null && event.isEnabled();
+        if (recording) {
+            event.begin();
+        }
+        try {
+            return invoke(interpreter, arguments);
+        } finally {
+            if (stack != null) {
+                stack.pop();
+            }
+            if (recording) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.function = declaration.name.lexeme;
+                    event.line = declaration.name.line;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private Object invoke(Interpreter interpreter, List<Object> arguments) {
+        if (interpreter.allocations != null) {
+            interpreter.allocations.recordEnvironment(interpreter.line);
+        }
         // Each call we create a new environmet to encapsulate the parameters.
-        Environment environment = new Environment(interpreter.globals);
+        Environment environment = new Environment(closure);
         for (int i = 0; i < declaration.parameters.size(); i++) {
             environment.define(declaration.parameters.get(i).lexeme,
                 arguments.get(i));
         }
+        // A function imported from a module reads the module's globals.
+        GlobalEnvironment callerGlobals = interpreter.globals;
+        interpreter.globals = globals;
+        // Only the expressions in this body count towards its nesting.
+        int callerNesting = interpreter.nesting;
+        interpreter.nesting = 0;
         // Execute.
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBlock(declaration.lazy == null
+                ? declaration.body : declaration.lazy.body(), environment);
         } catch (Return returnValue) {
             if (isInitializer) {
                 return closure.getAt(0, "this");
             }
             return returnValue.value;
+        } finally {
+            interpreter.globals = callerGlobals;
+            interpreter.nesting = callerNesting;
         }
         if (isInitializer) { 
             return closure.getAt(0, "this");
@@ -2,20 +2,33 @@ package com.craftinginterpreters.lox;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    // Stands in for nil, which ConcurrentHashMap cannot hold.
+    private static final Object NIL = new Object();
+
+    final LoxClass klass;
+    // Instances can be reached from several tasks at once. Each field read
+    // sees the latest write to that field from any thread.
+    private final Map<String, Object> fields = new ConcurrentHashMap<>();
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.instances.increment();
+        }
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        Object value = fields.get(name.lexeme);
+        if (value != null) {
+            return value == NIL ? null : value;
         }
 
+        if (LoxMetrics.ENABLED) {
+            LoxMetrics.methodLookups.increment();
+        }
         LoxFunction method = klass.findMethod(this, name.lexeme);
         if (method != null) {
             return method;
@@ -25,12 +38,23 @@ class LoxInstance {
             "Undefined property '" + name.lexeme + "'.");
     }
 
+    // A copy of the fields, for tools that walk the heap.
+    Map<String, Object> fields() {
+        Map<String, Object> copy = new HashMap<>();
+        fields.forEach((name, value) -> copy.put(name, value == NIL ? null : value));
+        return copy;
+    }
+
+    boolean hasField(String name) {
+        return fields.containsKey(name);
+    }
+
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        fields.put(name.lexeme, value == null ? NIL : value);
     }
 
     @Override
     public String toString() {
         return klass.name + " instance";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,229 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A hash map value, created by the map() native and used through get(),
+// set(), has(), remove(), len(), keys() and values().
+//
+// Keys are equal exactly when == says so: numbers by value, strings by
+// their characters (ropes included), everything else by identity.
+//
+// Entries are stored in insertion order in three parallel arrays, and an
+// open-addressing table of int indexes into them is probed linearly to
+// find a key. Keys and values are never boxed into entry objects, and
+// iteration follows insertion order. Removed entries leave a hole in the
+// arrays until the next resize; removal from the table shifts later
+// entries back rather than leaving tombstones.
+//
+// Like arrays, maps lock on every operation so tasks can share them.
+//
+// keys() and values() return new arrays, which is how scripts iterate: a
+// snapshot costs the same as one pass over the entries, and a loop over it
+// is unaffected by tasks changing the map meanwhile.
+final class LoxMap {
+    // Stands in for a nil key, and marks a removed entry.
+    private static final Object NIL = new Object();
+    private static final Object REMOVED = new Object();
+
+    private Object[] keys = new Object[8];
+    private Object[] values = new Object[8];
+    private int[] hashes = new int[8];
+    // Entry index + 1, or 0 for an empty slot. Twice the entry capacity, so
+    // at most half full.
+    private int[] table = new int[16];
+    // Entries used so far, including removed ones.
+    private int entries = 0;
+    private int size = 0;
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized Object get(Object key) {
+        key = normalize(key);
+        int entry = find(key, hash(key));
+        return entry < 0 ? null : values[entry];
+    }
+
+    synchronized boolean has(Object key) {
+        key = normalize(key);
+        return find(key, hash(key)) >= 0;
+    }
+
+    synchronized void set(Object key, Object value) {
+        key = normalize(key);
+        int hash = hash(key);
+        int entry = find(key, hash);
+        if (entry >= 0) {
+            values[entry] = value;
+            return;
+        }
+        if (entries == keys.length) {
+            // Reclaim removed entries, or grow if most are live.
+            resize(size < entries / 2 ? keys.length : keys.length * 2);
+        }
+        entry = entries++;
+        keys[entry] = key;
+        values[entry] = value;
+        hashes[entry] = hash;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry + 1;
+        size++;
+    }
+
+    synchronized Object remove(Object key) {
+        key = normalize(key);
+        int hash = hash(key);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                return null;
+            }
+            if (hashes[entry] == hash && same(keys[entry], key)) {
+                Object value = values[entry];
+                keys[entry] = REMOVED;
+                values[entry] = null;
+                size--;
+                shiftBack(slot);
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    synchronized LoxArray keys() {
+        LoxArray array = new LoxArray();
+        for (int i = 0; i < entries; i++) {
+            if (keys[i] != REMOVED) {
+                array.push(keys[i] == NIL ? null : keys[i]);
+            }
+        }
+        return array;
+    }
+
+    synchronized LoxArray values() {
+        LoxArray array = new LoxArray();
+        for (int i = 0; i < entries; i++) {
+            if (keys[i] != REMOVED) {
+                array.push(values[i]);
+            }
+        }
+        return array;
+    }
+
+    // Keys then values, live entries only, for printing and for tools that
+    // walk the heap.
+    synchronized Object[] snapshot() {
+        Object[] snapshot = new Object[2 * size];
+        int j = 0;
+        for (int i = 0; i < entries; i++) {
+            if (keys[i] != REMOVED) {
+                snapshot[j] = keys[i] == NIL ? null : keys[i];
+                snapshot[size + j] = values[i];
+                j++;
+            }
+        }
+        return snapshot;
+    }
+
+    synchronized long storageBytes() {
+        return 3 * (16 + 4L * keys.length) + 16 + 4L * table.length;
+    }
+
+    private int find(Object key, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (hashes[entry] == hash && same(keys[entry], key)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Empties a slot, moving later entries of the same run into it when
+    // their home slot is at or before it.
+    private void shiftBack(int empty) {
+        int mask = table.length - 1;
+        int slot = empty;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                break;
+            }
+            int home = hashes[entry] & mask;
+            // Distance from home to each slot, going round the table.
+            if (((slot - home) & mask) >= ((slot - empty) & mask)) {
+                table[empty] = table[slot];
+                empty = slot;
+            }
+        }
+        table[empty] = 0;
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        int oldEntries = entries;
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        table = new int[2 * capacity];
+        entries = 0;
+        int mask = table.length - 1;
+        for (int i = 0; i < oldEntries; i++) {
+            if (oldKeys[i] == REMOVED) {
+                continue;
+            }
+            int entry = entries++;
+            keys[entry] = oldKeys[i];
+            values[entry] = oldValues[i];
+            hashes[entry] = oldHashes[i];
+            int slot = hashes[entry] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+        }
+        Arrays.fill(oldValues, null);
+    }
+
+    private static Object normalize(Object key) {
+        return key == null ? NIL : Rope.normalize(key);
+    }
+
+    // Matches Double.equals and String.equals, which isEqual uses.
+    private static int hash(Object key) {
+        int h;
+        if (key instanceof Double) {
+            long bits = Double.doubleToLongBits((double) key);
+            h = (int) (bits ^ (bits >>> 32));
+        } else {
+            h = key.hashCode();
+        }
+        // Spread the bits so consecutive numbers do not fill one run.
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(Object a, Object b) {
+        return a == b || a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return Interpreter.stringify(this);
+    }
+}
@@ -0,0 +1,130 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters bumped from the interpreter's hot paths and published as an
+// MXBean. LongAdder keeps contexts running on different threads from fighting
+// over one cache line.
+//
+// Start the JVM with -Dlox.metrics=false to turn them off. ENABLED is then a
+// constant false and the JIT drops every guarded update entirely.
+final class LoxMetrics implements LoxMetricsMXBean {
+    static final boolean ENABLED =
+        !"false".equals(System.getProperty("lox.metrics"));
+
+    static final LongAdder functionCalls = new LongAdder();
+    static final LongAdder environments = new LongAdder();
+    static final LongAdder instances = new LongAdder();
+    static final LongAdder methodLookups = new LongAdder();
+    static final LongAdder runtimeErrors = new LongAdder();
+    static final LongAdder compileErrors = new LongAdder();
+    static final LongAdder scanNanos = new LongAdder();
+    static final LongAdder parseNanos = new LongAdder();
+    static final LongAdder resolveNanos = new LongAdder();
+    static final LongAdder interpretNanos = new LongAdder();
+    static final LongAdder programsCompiled = new LongAdder();
+    static final LongAdder programsRun = new LongAdder();
+
+    private static boolean registered = false;
+
+    private LoxMetrics() {}
+
+    // Publishes the counters on the platform MBean server, once.
+    static synchronized void register() {
+        if (!ENABLED || registered) {
+            return;
+        }
+        registered = true;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name =
+                new ObjectName("com.craftinginterpreters.lox:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new LoxMetrics(), name);
+            }
+        } catch (JMException | SecurityException e) {
+            // Monitoring is optional. Scripts still run without it.
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    @Override
+    public long getFunctionCalls() {
+        return functionCalls.sum();
+    }
+
+    @Override
+    public long getEnvironmentsCreated() {
+        return environments.sum();
+    }
+
+    @Override
+    public long getInstancesCreated() {
+        return instances.sum();
+    }
+
+    @Override
+    public long getMethodLookups() {
+        return methodLookups.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    @Override
+    public long getCompileErrors() {
+        return compileErrors.sum();
+    }
+
+    @Override
+    public long getScanNanos() {
+        return scanNanos.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    @Override
+    public long getResolveNanos() {
+        return resolveNanos.sum();
+    }
+
+    @Override
+    public long getInterpretNanos() {
+        return interpretNanos.sum();
+    }
+
+    @Override
+    public long getProgramsCompiled() {
+        return programsCompiled.sum();
+    }
+
+    @Override
+    public long getProgramsRun() {
+        return programsRun.sum();
+    }
+
+    @Override
+    public void reset() {
+        LongAdder[] all = {
+            functionCalls, environments, instances, methodLookups,
+            runtimeErrors, compileErrors, scanNanos, parseNanos,
+            resolveNanos, interpretNanos, programsCompiled, programsRun
+        };
+        for (LongAdder adder : all) {
+            adder.reset();
+        }
+    }
+}
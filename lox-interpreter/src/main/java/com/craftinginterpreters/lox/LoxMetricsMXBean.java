@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * What the interpreter publishes over JMX as
+ * {@code com.craftinginterpreters.lox:type=Metrics}. All counts are totals
+ * since the JVM started, across every engine and context.
+ */
+public interface LoxMetricsMXBean {
+    boolean isEnabled();
+
+    long getFunctionCalls();
+
+    long getEnvironmentsCreated();
+
+    long getInstancesCreated();
+
+    long getMethodLookups();
+
+    long getRuntimeErrors();
+
+    long getCompileErrors();
+
+    long getScanNanos();
+
+    /**
+     * Time spent parsing. Variables are resolved as they are parsed, so
+     * this includes resolution.
+     */
+    long getParseNanos();
+
+    /**
+     * Time spent after parsing working out which functions are pure and
+     * can be memoized.
+     */
+    long getResolveNanos();
+
+    long getInterpretNanos();
+
+    long getProgramsCompiled();
+
+    long getProgramsRun();
+
+    void reset();
+}
@@ -0,0 +1,26 @@
+package com.craftinginterpreters.lox;
+
+// What an import statement binds: the globals a module's program defined
+// when it ran. They are read like properties, as in strings.pad(s, 10).
+final class LoxModule {
+    final String name;
+    // The compiled program that filled in the globals. If the file has been
+    // recompiled since, importing it again runs the new program.
+    final LoxProgram program;
+    final GlobalEnvironment globals;
+
+    LoxModule(String name, LoxProgram program, GlobalEnvironment globals) {
+        this.name = name;
+        this.program = program;
+        this.globals = globals;
+    }
+
+    Object get(Token name) {
+        return globals.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "<module " + name + ">";
+    }
+}
@@ -0,0 +1,223 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffered output for print statements, written to a channel in large
+ * blocks.
+ *
+ * <p>Printed lines are encoded into one reusable buffer. The buffer
+ * is written out when it fills up, after every line if {@code flushOnNewline}
+ * is set, every {@code flushIntervalMillis} if that is positive, each time a
+ * program finishes running in a context using it, and on {@link #flush()}
+ * and {@link #close()}.
+ *
+ * <p>Like {@link java.io.PrintStream}, it never throws: after a failed write
+ * it drops further output and {@link #checkError()} returns true.
+ */
+public final class LoxOutput extends OutputSink {
+    private static final class Stdout {
+        static final LoxOutput INSTANCE = stdoutOutput();
+    }
+
+    private static final class Flusher {
+        static final ScheduledExecutorService INSTANCE = flusher();
+    }
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final boolean flushOnNewline;
+    private final ScheduledFuture<?> periodicFlush;
+    // Guarded by this.
+    private final ByteBuffer buffer;
+    private final byte[] number = new byte[NumberFormatter.MAX_LENGTH + 1];
+    private boolean error = false;
+
+    public LoxOutput(WritableByteChannel channel, Charset charset,
+                     int bufferSize, boolean flushOnNewline,
+                     long flushIntervalMillis) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 16));
+        this.flushOnNewline = flushOnNewline;
+        this.periodicFlush = flushIntervalMillis <= 0 ? null
+            : Flusher.INSTANCE.scheduleWithFixedDelay(this::flush,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Standard output in the default charset, shared by every context
+     * printing there. Flushed after every line when attached to a terminal,
+     * otherwise every 100ms, and when the JVM exits.
+     */
+    public static LoxOutput stdout() {
+        return Stdout.INSTANCE;
+    }
+
+    private static LoxOutput stdoutOutput() {
+        boolean interactive = System.console() != null;
+        LoxOutput out = new LoxOutput(
+            new FileOutputStream(FileDescriptor.out).getChannel(),
+            Charset.defaultCharset(), 64 * 1024, interactive, interactive ? 0 : 100);
+        Runtime.getRuntime().addShutdownHook(new Thread(out::flush));
+        return out;
+    }
+
+    // A new or truncated file for the create() native, written in 64 KB
+    // blocks. The context that opened it flushes it at the end of every
+    // run until it is closed. See Interpreter.writers.
+    static LoxOutput create(Object path) {
+        if (!Rope.isString(path)) {
+            throw new NativeError("File name must be a string.");
+        }
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(path.toString()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            return new LoxOutput(channel, Charset.defaultCharset(),
+                64 * 1024, false, 0);
+        } catch (IOException | RuntimeException e) {
+            throw new NativeError("Cannot create '" + path + "': " + e.getMessage());
+        }
+    }
+
+    private static ScheduledExecutorService flusher() {
+        ScheduledThreadPoolExecutor flusher =
+            new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "lox-output-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        flusher.setRemoveOnCancelPolicy(true);
+        return flusher;
+    }
+
+    @Override
+    synchronized void println(String text) {
+        write(text);
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) '\n');
+        if (flushOnNewline) {
+            drain();
+        }
+    }
+
+    // Text without a line break, for the write() native.
+    synchronized void print(String text) {
+        write(text);
+    }
+
+    private void write(String text) {
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                int end = i + 1;
+                while (end < length && text.charAt(end) >= 0x80) {
+                    end++;
+                }
+                encode(text, i, end);
+                i = end;
+                continue;
+            }
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) c);
+            i++;
+        }
+    }
+
+    // Formats the digits into a scratch array, no String in between.
+    @Override
+    synchronized void println(double value) {
+        int length = NumberFormatter.format(value, number, 0);
+        number[length++] = '\n';
+        if (buffer.remaining() < length) {
+            drain();
+        }
+        buffer.put(number, 0, length);
+        if (flushOnNewline) {
+            drain();
+        }
+    }
+
+    // Everything below 0x80 is copied straight into the buffer. Other
+    // characters are rare enough to go through the encoder.
+    private void encode(String text, int start, int end) {
+        CharBuffer chars = CharBuffer.wrap(text, start, end);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            drain();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining() && !error) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            error = true;
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (buffer.position() > 0) {
+            drain();
+        }
+    }
+
+    /**
+     * Flushes and closes the channel. Standard output is only flushed.
+     */
+    public synchronized void close() {
+        flush();
+        if (periodicFlush != null) {
+            periodicFlush.cancel(false);
+        }
+        if (this == Stdout.INSTANCE) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    public synchronized boolean checkError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "<writer>";
+    }
+}
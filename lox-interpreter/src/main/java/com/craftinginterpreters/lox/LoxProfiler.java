@@ -0,0 +1,171 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Samples the Lox call stacks of a context and of the tasks it spawns.
+ *
+ * <p>Every interval the profiler records each running stack as a list of
+ * {@code function:line} frames, outermost first, with top-level code as
+ * {@code <script>}. The interpreter only keeps its stack up to date while a
+ * profiler is attached, and sampling happens on a separate thread, so the
+ * cost to the script is a few field writes per call.
+ *
+ * <p>Results can be written in the collapsed format flame graph tools read,
+ * and summarized as the hottest functions and lines.
+ */
+public final class LoxProfiler {
+    private final long intervalMillis;
+    private final Queue<WeakReference<CallStack>> stacks =
+        new ConcurrentLinkedQueue<>();
+    // Collapsed stack to sample count. Guarded by this.
+    private final Map<String, Long> samples = new HashMap<>();
+    private Thread sampler;
+
+    public LoxProfiler(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        sampler = new Thread(this::sampleUntilStopped, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = sampler;
+            sampler = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    CallStack newStack() {
+        CallStack stack = new CallStack();
+        stacks.add(new WeakReference<>(stack));
+        return stack;
+    }
+
+    private void sampleUntilStopped() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(intervalMillis);
+                sample();
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+
+    private void sample() {
+        StringBuilder collapsed = new StringBuilder();
+        Iterator<WeakReference<CallStack>> iterator = stacks.iterator();
+        while (iterator.hasNext()) {
+            CallStack stack = iterator.next().get();
+            if (stack == null) {
+                iterator.remove();
+                continue;
+            }
+            String[] functions = stack.functions;
+            int[] lines = stack.lines;
+            int depth = Math.min(stack.depth,
+                Math.min(functions.length, lines.length));
+            if (depth <= 0) {
+                continue;
+            }
+            collapsed.setLength(0);
+            for (int i = 0; i < depth; i++) {
+                if (i > 0) {
+                    collapsed.append(';');
+                }
+                collapsed.append(functions[i]).append(':').append(lines[i]);
+            }
+            synchronized (this) {
+                samples.merge(collapsed.toString(), 1L, Long::sum);
+            }
+        }
+    }
+
+    /**
+     * Writes one line per distinct stack: the frames separated by ';', a
+     * space, and the number of samples.
+     */
+    public void writeCollapsed(Writer out) throws IOException {
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            out.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the functions and lines that were seen most often, by samples
+     * spent in them directly (self) and including their callees (total).
+     */
+    public void printHotspots(PrintStream out, int limit) {
+        Map<String, Long> self = new HashMap<>();
+        Map<String, Long> total = new HashMap<>();
+        Map<String, Long> lines = new HashMap<>();
+        long count = 0;
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            String[] frames = entry.getKey().split(";");
+            long samples = entry.getValue();
+            count += samples;
+            Set<String> seen = new HashSet<>();
+            for (String frame : frames) {
+                String function = frame.substring(0, frame.lastIndexOf(':'));
+                if (seen.add(function)) {
+                    total.merge(function, samples, Long::sum);
+                }
+            }
+            String leaf = frames[frames.length - 1];
+            self.merge(leaf.substring(0, leaf.lastIndexOf(':')), samples,
+                Long::sum);
+            lines.merge(leaf, samples, Long::sum);
+        }
+
+        out.println(count + " samples.");
+        out.println(String.format("%8s %8s  %s", "self", "total", "function"));
+        for (String function : top(total, limit)) {
+            out.println(String.format("%8d %8d  %s",
+                self.getOrDefault(function, 0L), total.get(function), function));
+        }
+        out.println(String.format("%8s  %s", "self", "line"));
+        for (String line : top(lines, limit)) {
+            out.println(String.format("%8d  %s", lines.get(line), line));
+        }
+    }
+
+    private synchronized Map<String, Long> snapshot() {
+        return new HashMap<>(samples);
+    }
+
+    private static List<String> top(Map<String, Long> counts, int limit) {
+        List<String> keys = new ArrayList<>(counts.keySet());
+        keys.sort((a, b) -> Long.compare(counts.get(b), counts.get(a)));
+        return keys.subList(0, Math.min(limit, keys.size()));
+    }
+}
@@ -0,0 +1,27 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scanned, parsed and resolved source, ready to run in a {@link LoxContext}.
+ * Create one with {@link LoxEngine#compile(String)}.
+ *
+ * <p>The syntax tree and everything the resolver works out about it are fixed
+ * once compiled. Running the program still fills in caches on the tree as it
+ * goes: the global slot each variable read resolved to, the Java method a call
+ * site bound to, and the bodies of functions parsed lazily on their first
+ * call. Each is published safely and checked before use, so the same program
+ * can be run any number of times, in any number of contexts, from any number
+ * of threads at once. Contexts must come from the engine that compiled the
+ * program.
+ */
+public final class LoxProgram {
+    final SymbolTable symbols;
+    final List<Stmt> statements;
+
+    LoxProgram(SymbolTable symbols, List<Stmt> statements) {
+        this.symbols = symbols;
+        this.statements = Collections.unmodifiableList(statements);
+    }
+}
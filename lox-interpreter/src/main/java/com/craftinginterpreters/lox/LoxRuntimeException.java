@@ -0,0 +1,24 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A program stopped with a runtime error.
+ */
+public final class LoxRuntimeException extends LoxException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+    LoxRuntimeException(RuntimeError error) {
+        super(error.getMessage() + "\n[line " + error.token.line + "]");
+        this.line = error.token.line;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int exitCode() {
+        return 70;
+    }
+}
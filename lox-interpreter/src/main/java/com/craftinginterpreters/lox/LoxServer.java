@@ -0,0 +1,236 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a warmed-up JVM around and runs scripts sent to it over a loopback
+ * socket, so short scripts don't pay for JVM startup and a cold JIT each time.
+ * Start it with {@code jlox --server [port]} and talk to it with
+ * {@code bin/jloxc}.
+ *
+ * <p>Each connection carries one request, as a single header line:
+ * <pre>
+ * RUN &lt;absolute path&gt;
+ * EVAL &lt;byte count&gt;
+ * </pre>
+ * For EVAL the header is followed by that many bytes of UTF-8 source. The
+ * server answers with one line per line the script printed, tagged with the
+ * stream it went to, and finishes with the status {@code jlox} would have
+ * exited with:
+ * <pre>
+ * OUT &lt;text&gt;
+ * ERR &lt;text&gt;
+ * EXIT &lt;status&gt;
+ * </pre>
+ * Every request runs in a fresh {@link LoxContext}.
+ */
+public final class LoxServer {
+    public static final int DEFAULT_PORT = 7919;
+
+    // Exercises the interpreter's hot paths before the first real request.
+    private static final String WARM_UP =
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }"
+        + "class Point { init(x, y) { this.x = x; this.y = y; }"
+        + " sum() { return this.x + this.y; } }"
+        + "var s = \"\"; var total = 0;"
+        + "for (var i = 0; i < 200; i = i + 1) {"
+        + " total = total + Point(i, fib(10)).sum(); s = s + \"x\"; }"
+        + "print total;";
+    private static final int WARM_UP_RUNS = 50;
+    // The most source an EVAL request may send.
+    static final int MAX_SOURCE_BYTES = 16 << 20;
+
+    private final LoxEngine engine;
+    private final int port;
+    // Requests beyond one per core wait for a free worker.
+    private final ExecutorService workers = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+
+    public LoxServer(LoxEngine engine, int port) {
+        this.engine = engine;
+        this.port = port;
+    }
+
+    /**
+     * Warms up, then serves requests until the process is killed.
+     */
+    public void serve() throws IOException {
+        warmUp();
+        try (ServerSocket server = new ServerSocket(
+                port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("jlox server listening on "
+                + server.getLocalSocketAddress());
+            serve(server);
+        }
+    }
+
+    // Serves requests on the socket until it is closed, then lets the
+    // requests already accepted finish and stops the workers.
+    void serve(ServerSocket server) throws IOException {
+        try {
+            for (;;) {
+                Socket socket = server.accept();
+                workers.execute(() -> handle(socket));
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void warmUp() {
+        PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        try {
+            LoxProgram program = engine.compile(WARM_UP);
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                engine.run(program, engine.createContext(discard));
+            }
+        } catch (LoxException error) {
+            throw new IllegalStateException("Warm-up script failed.", error);
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out =
+                new BufferedOutputStream(connection.getOutputStream());
+            Frames stdout = new Frames("OUT ", out);
+            Frames stderr = new Frames("ERR ", out);
+            int status = run(readLine(in), in, stdout, stderr);
+            stdout.finish();
+            stderr.finish();
+            out.write(("EXIT " + status + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // The client went away. Nothing to report it to.
+        }
+    }
+
+    private int run(String header, InputStream in, Frames stdout,
+                    Frames stderr) throws IOException {
+        PrintStream err = printStream(stderr);
+        String source;
+        Path path = null;
+        if (header.startsWith("RUN ")) {
+            path = Paths.get(header.substring(4));
+            try {
+                byte[] bytes = Files.readAllBytes(path);
+                source = new String(bytes, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                err.println("Cannot read " + header.substring(4) + ".");
+                return 66;
+            }
+        } else if (header.startsWith("EVAL ")) {
+            int length;
+            try {
+                length = Integer.parseInt(header.substring(5).trim());
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0 || length > MAX_SOURCE_BYTES) {
+                err.println("EVAL takes a length from 0 to "
+                    + MAX_SOURCE_BYTES + " bytes.");
+                return 64;
+            }
+            byte[] bytes = new byte[length];
+            new DataInputStream(in).readFully(bytes);
+            source = new String(bytes, StandardCharsets.UTF_8);
+        } else {
+            err.println("Usage: RUN <path> | EVAL <bytes>");
+            return 64;
+        }
+
+        try {
+            LoxProgram program = engine.compile(source, path);
+            engine.run(program, engine.createContext(printStream(stdout)));
+            return 0;
+        } catch (LoxException error) {
+            err.println(error.getMessage());
+            return error.exitCode();
+        } catch (StackOverflowError error) {
+            err.println("Stack overflow.");
+            return 70;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static PrintStream printStream(OutputStream out) {
+        try {
+            return new PrintStream(out, true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Cuts what a script writes into tagged lines. Both of a request's
+    // streams share the socket, so each line goes out whole.
+    private static final class Frames extends OutputStream {
+        private final byte[] tag;
+        private final OutputStream socket;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        Frames(String tag, OutputStream socket) {
+            this.tag = tag.getBytes(StandardCharsets.UTF_8);
+            this.socket = socket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                emit();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (socket) {
+                socket.flush();
+            }
+        }
+
+        void finish() throws IOException {
+            if (line.size() > 0) {
+                emit();
+            }
+        }
+
+        private void emit() throws IOException {
+            synchronized (socket) {
+                socket.write(tag);
+                line.writeTo(socket);
+                socket.write('\n');
+            }
+            line.reset();
+        }
+    }
+}
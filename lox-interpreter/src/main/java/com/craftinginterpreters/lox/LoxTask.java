@@ -0,0 +1,140 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// A Lox function running concurrently with the code that started it.
+//
+//     fun fetch() { ... }
+//     var task = spawn(fetch);
+//     ...
+//     print join(task);
+//
+// Tasks run on virtual threads when the JVM has them (Java 21 and later) and
+// on a cached pool of daemon threads otherwise, so a script can keep thousands
+// of them blocked at once.
+//
+// Memory model. A task runs with its own interpreter state but shares the
+// context's globals, the fields of any instance it can reach, and the
+// variables its function closes over:
+//
+// - Everything done before spawn() is visible to the task, and everything the
+//   task did is visible once join() returns.
+// - Each read of a global, an instance field or a variable the spawned
+//   function closes over sees the latest write to it from any thread.
+//   Nothing more is atomic: "counter = counter + 1" from two tasks can lose
+//   an update.
+// - Variables are shared through the spawned function's closure. A function
+//   created later and handed to the task some other way, such as through an
+//   instance field, must not close over variables that the creating code is
+//   still declaring new variables next to.
+//
+// LoxEngine.run() waits for every task the program started, including ones
+// nobody joined, and reports the first error from a task that was never
+// joined. Each task flushes the output it printed when it finishes.
+final class LoxTask {
+    private static final ExecutorService executor = newExecutor();
+
+    private final Future<Object> result;
+    // Where errors from a task nobody joined are reported.
+    private final Token site;
+    // Set by join(), which reports the task's error itself.
+    private volatile boolean joined = false;
+
+    LoxTask(Interpreter parent, LoxCallable function) {
+        if (function instanceof LoxFunction) {
+            ((LoxFunction) function).share();
+            this.site = ((LoxFunction) function).declaration.name;
+        } else {
+            this.site = new Token(TokenType.IDENTIFIER, "spawn", null,
+                                  parent.line);
+        }
+        Interpreter interpreter = new Interpreter(parent);
+        this.result = executor.submit(() -> {
+            try {
+                return function.call(interpreter, Collections.emptyList());
+            } finally {
+                interpreter.flushOutput();
+            }
+        });
+        parent.tasks.add(this);
+    }
+
+    Object join() {
+        joined = true;
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while joining task.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // Report errors from the task as if they happened here.
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new NativeError("Task failed: " + cause);
+        }
+    }
+
+    // Waits for every task in the queue to finish, along with any tasks they
+    // start, and returns the first error from a task nobody joined.
+    static RuntimeError awaitAll(Queue<LoxTask> tasks) {
+        RuntimeError unobserved = null;
+        LoxTask task;
+        while ((task = tasks.poll()) != null) {
+            RuntimeError error = task.await();
+            if (unobserved == null) unobserved = error;
+        }
+        return unobserved;
+    }
+
+    private RuntimeError await() {
+        try {
+            result.get();
+            return null;
+        } catch (InterruptedException e) {
+            // Stop waiting. The remaining tasks keep running.
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (joined) return null;
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof RuntimeError) {
+                RuntimeError error = (RuntimeError) cause;
+                return new RuntimeError(error.token,
+                    "Unjoined task failed: " + error.getMessage());
+            }
+            return new RuntimeError(site,
+                "Unjoined task failed: " + cause.getMessage());
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "lox-task");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
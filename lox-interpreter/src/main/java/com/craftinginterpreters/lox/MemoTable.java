@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Results of a pure function by argument values, least recently used first.
+// Tasks may call the same function at once, so every access locks the table;
+// the function itself runs outside the lock.
+final class MemoTable {
+    // Entries kept per function. -Dlox.memo.size=0 turns memoization off.
+    static final int SIZE = Integer.getInteger("lox.memo.size", 4096);
+
+    // Distinguishes a missing entry from a nil result.
+    static final Object MISSING = new Object();
+
+    private final Map<List<Object>, Object> results =
+        new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<List<Object>, Object> eldest) {
+                return size() > SIZE;
+            }
+        };
+
+    synchronized Object get(List<Object> arguments) {
+        Object result = results.get(arguments);
+        if (result == null && !results.containsKey(arguments)) {
+            return MISSING;
+        }
+        return result;
+    }
+
+    synchronized void put(List<Object> arguments, Object result) {
+        results.put(arguments, result);
+    }
+
+    // Only values compared by content make reliable keys.
+    static boolean canKey(List<Object> arguments) {
+        for (Object argument : arguments) {
+            if (argument != null && !(argument instanceof Double)
+                && !Rope.isString(argument)
+                && !(argument instanceof Boolean)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The arguments as a key, with any rope flattened to the String it
+    // stands for, so a built string finds the result of an equal literal.
+    static List<Object> key(List<Object> arguments) {
+        for (Object argument : arguments) {
+            if (argument instanceof Rope) {
+                List<Object> key = new ArrayList<>(arguments.size());
+                for (Object each : arguments) {
+                    key.add(Rope.normalize(each));
+                }
+                return key;
+            }
+        }
+        return arguments;
+    }
+}
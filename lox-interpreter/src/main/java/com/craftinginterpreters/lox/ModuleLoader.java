@@ -0,0 +1,125 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Compiles the files that import statements name, once per engine.
+//
+// Each module's compiled program is cached by its absolute path, along with
+// the file's size and modification time. Importing it again, from any
+// program or context, reuses the cached program until the file changes, so
+// reloading a large program only recompiles the modules that were edited.
+//
+// Compiling a program starts compiling everything it imports straight after
+// parsing, each module on a pool thread, and each of those starts its own
+// imports in turn. Independent modules are scanned, parsed and resolved in
+// parallel with each other and with the program importing them; the import
+// statement only waits if its module is not ready when it runs.
+final class ModuleLoader {
+    // Carries a module's compile errors out of the interpreter, which only
+    // throws unchecked exceptions. LoxEngine.run() reports the errors.
+    static final class CompileError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final LoxCompileException error;
+
+        CompileError(LoxCompileException error) {
+            super(error.getMessage(), error);
+            this.error = error;
+        }
+    }
+
+    private static final class Entry {
+        final FileTime modified;
+        final long size;
+        final CompletableFuture<LoxProgram> program;
+
+        Entry(FileTime modified, long size, CompletableFuture<LoxProgram> program) {
+            this.modified = modified;
+            this.size = size;
+            this.program = program;
+        }
+    }
+
+    private final LoxEngine engine;
+    private final ConcurrentMap<String, Entry> modules = new ConcurrentHashMap<>();
+
+    ModuleLoader(LoxEngine engine) {
+        this.engine = engine;
+    }
+
+    // The absolute path an import names, relative to the importing file.
+    static String resolve(Path importer, String path) {
+        Path base = importer == null ? null : importer.toAbsolutePath().getParent();
+        Path file = base == null ? Paths.get(path) : base.resolve(path);
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    // Starts compiling the module unless an up-to-date compile is cached or
+    // already under way.
+    CompletableFuture<LoxProgram> load(String file) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(Paths.get(file),
+                BasicFileAttributes.class);
+        } catch (IOException e) {
+            modules.remove(file);
+            CompletableFuture<LoxProgram> missing = new CompletableFuture<>();
+            missing.completeExceptionally(
+                new NativeError("Cannot read module '" + file + "'."));
+            return missing;
+        }
+        FileTime modified = attributes.lastModifiedTime();
+        long size = attributes.size();
+        return modules.compute(file, (key, entry) -> {
+            if (entry != null && entry.modified.equals(modified)
+                && entry.size == size) {
+                return entry;
+            }
+            return new Entry(modified, size,
+                CompletableFuture.supplyAsync(() -> compile(file)));
+        }).program;
+    }
+
+    // Waits for the module's program. A file that cannot be read surfaces
+    // as a NativeError, one that does not compile as a CompileError.
+    LoxProgram program(String file) {
+        try {
+            return load(file).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof NativeError) {
+                throw (NativeError) e.getCause();
+            }
+            if (e.getCause() instanceof CompileError) {
+                throw (CompileError) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private LoxProgram compile(String file) {
+        Path path = Paths.get(file);
+        String source;
+        try {
+            source = new String(Files.readAllBytes(path),
+                StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new NativeError("Cannot read module '" + file + "'.");
+        }
+        try {
+            return engine.compile(source, path);
+        } catch (LoxCompileException error) {
+            throw new CompileError(
+                new LoxCompileException(file, error.getErrors()));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by native functions, which do not know where they were called from.
+// The interpreter turns it into a RuntimeError at the call site.
+class NativeError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    NativeError(String message) {
+        super(message);
+    }
+}
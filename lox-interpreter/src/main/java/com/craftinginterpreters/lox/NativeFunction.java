@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+// A global function implemented in Java.
+abstract class NativeFunction implements LoxCallable {
+    private final int arity;
+
+    NativeFunction(int arity) {
+        this.arity = arity;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
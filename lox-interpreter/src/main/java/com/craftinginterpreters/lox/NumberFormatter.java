@@ -0,0 +1,262 @@
+package com.craftinginterpreters.lox;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+// Formats numbers the way print shows them: like Double.toString, minus the
+// ".0" on integral values, so 3.0 prints as "3" and 1e21 as "1.0E21".
+//
+// Digits come from Raffaello Giulietti's Schubfach algorithm, which finds
+// the shortest decimal that reads back as the same double using a couple of
+// 64-bit multiplications. This is the algorithm newer JDKs use inside
+// Double.toString; older ones sometimes print a digit too many, which this
+// never does. Characters are written as ASCII bytes straight into the
+// caller's buffer, so printing a number allocates nothing.
+final class NumberFormatter {
+    // Longest output: "-" 17 digits "." "E-" 3 digits, plus a zero or two.
+    static final int MAX_LENGTH = 32;
+
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long C_TINY = 3;
+    private static final int BQ_MASK = (1 << 11) - 1;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+
+    // 10^0 to 10^18.
+    private static final long[] POWERS = new long[19];
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    // For each k, 10^-k as a 126-bit value split into two 63-bit halves.
+    private static final long[] G = powersOfTen();
+
+    private NumberFormatter() {}
+
+    static String toString(double value) {
+        byte[] bytes = new byte[MAX_LENGTH];
+        int length = format(value, bytes, 0);
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    // Writes the number at bytes[start] and returns where it ends.
+    static int format(double value, byte[] bytes, int start) {
+        int pos = start;
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0 && !Double.isNaN(value)) {
+            bytes[pos++] = '-';
+        }
+        double magnitude = Math.abs(value);
+
+        // Most numbers in scripts are small integers.
+        if (magnitude < 1e7 && magnitude == (long) magnitude) {
+            return integer((long) magnitude, bytes, pos);
+        }
+        if (Double.isNaN(value)) {
+            return ascii("NaN", bytes, pos);
+        }
+        if (Double.isInfinite(value)) {
+            return ascii("Infinity", bytes, pos);
+        }
+
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+        if (bq != 0) {
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            // An integer that fits in the significand.
+            if (0 < mq && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    return digits(f, 0, bytes, pos);
+                }
+            }
+            return shortest(-mq, c, 0, bytes, pos);
+        }
+        // Subnormal.
+        return t < C_TINY
+            ? shortest(Q_MIN, 10 * t, -1, bytes, pos)
+            : shortest(Q_MIN, t, 0, bytes, pos);
+    }
+
+    // Finds the shortest decimal f 10^e in the rounding interval of c 2^q.
+    private static int shortest(int q, long c, int dk, byte[] bytes, int pos) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN | q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        int index = 2 * (k - K_MIN);
+        long g1 = G[index];
+        long g0 = G[index + 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return digits(upin ? sp10 : tp10, k, bytes, pos);
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            return digits(uin ? s : t, k + dk, bytes, pos);
+        }
+        long cmp = vb - ((s + t) << 1);
+        return digits(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk,
+            bytes, pos);
+    }
+
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+    }
+
+    // Lays out f 10^e like Double.toString: plain for 10^-3 <= v < 10^7,
+    // otherwise d.dddE<n>.
+    private static int digits(long f, int e, byte[] bytes, int pos) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int count = digitCount(f);
+        // The value is 0.d1d2...dcount 10^exponent.
+        int exponent = e + count;
+
+        if (0 < exponent && exponent <= 7) {
+            int end = integer(f, bytes, pos);
+            if (count <= exponent) {
+                for (int i = count; i < exponent; i++) {
+                    bytes[end++] = '0';
+                }
+                return end;
+            }
+            int point = pos + exponent;
+            System.arraycopy(bytes, point, bytes, point + 1, end - point);
+            bytes[point] = '.';
+            return end + 1;
+        }
+        if (-3 < exponent && exponent <= 0) {
+            bytes[pos++] = '0';
+            bytes[pos++] = '.';
+            for (int i = exponent; i < 0; i++) {
+                bytes[pos++] = '0';
+            }
+            return integer(f, bytes, pos);
+        }
+        int end = integer(f, bytes, pos + 1);
+        bytes[pos] = bytes[pos + 1];
+        bytes[pos + 1] = '.';
+        if (count == 1) {
+            bytes[end++] = '0';
+        }
+        bytes[end++] = 'E';
+        int power = exponent - 1;
+        if (power < 0) {
+            bytes[end++] = '-';
+            power = -power;
+        }
+        return integer(power, bytes, end);
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (count < POWERS.length && value >= POWERS[count]) {
+            count++;
+        }
+        return count;
+    }
+
+    // Two digits per division, right to left.
+    private static int integer(long value, byte[] bytes, int pos) {
+        int end = pos + digitCount(value);
+        int i = end;
+        while (value >= 100) {
+            long quotient = value / 100;
+            int pair = (int) (value - quotient * 100);
+            bytes[--i] = (byte) ('0' + pair % 10);
+            bytes[--i] = (byte) ('0' + pair / 10);
+            value = quotient;
+        }
+        if (value >= 10) {
+            bytes[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        bytes[--i] = (byte) ('0' + value);
+        return end;
+    }
+
+    private static int ascii(String text, byte[] bytes, int pos) {
+        for (int i = 0; i < text.length(); i++) {
+            bytes[pos++] = (byte) text.charAt(i);
+        }
+        return pos;
+    }
+
+    // floor(e log10(2))
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    // floor(e log10(3/4 2))
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    // floor(e log2(10))
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    // g = floor(10^-k 2^-r) + 1 with r chosen so 2^125 <= g < 2^126, split
+    // into its high and low 63 bits. Computed once rather than shipped as a
+    // table of 1234 constants.
+    private static long[] powersOfTen() {
+        long[] g = new long[2 * (K_MAX - K_MIN + 1)];
+        BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int r = flog2pow10(-k) - 125;
+            BigInteger beta;
+            if (k <= 0) {
+                BigInteger power = BigInteger.TEN.pow(-k);
+                beta = r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r);
+            } else {
+                beta = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+            }
+            BigInteger value = beta.add(BigInteger.ONE);
+            int index = 2 * (k - K_MIN);
+            g[index] = value.shiftRight(63).longValue();
+            g[index + 1] = value.and(mask).longValue();
+        }
+        return g;
+    }
+}
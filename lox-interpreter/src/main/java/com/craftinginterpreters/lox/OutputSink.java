@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+// Where a context's print statements go. Each call prints one whole line,
+// so lines printed by concurrent tasks never interleave.
+abstract class OutputSink {
+    abstract void println(String text);
+
+    void println(double number) {
+        println(NumberFormatter.toString(number));
+    }
+
+    // Pushes out anything buffered. Called when a program finishes running.
+    void flush() {
+    }
+}
@@ -0,0 +1,144 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Runs a Lox function over a range of numbers on the fork/join pool, for the
+// parallelFor() and parallelReduce() natives.
+//
+// The range is split in halves until the pieces are small enough, and idle
+// workers steal pieces from busy ones. Every piece runs on its own
+// Interpreter, sharing the caller's globals the same way a spawned LoxTask
+// does, so the function may not rely on anything but its argument and state
+// that is safe to share (see LoxTask).
+//
+// Fork/join tasks are Serializable, but this one holds interpreter state and
+// is never serialized.
+@SuppressWarnings("serial")
+final class ParallelRange extends RecursiveTask<Object> {
+    // Pieces per worker. More pieces balance uneven work better.
+    private static final int PIECES_PER_WORKER = 8;
+
+    private final Interpreter parent;
+    private final LoxCallable function;
+    // Merges two pieces' results. Null for parallelFor().
+    private final LoxCallable combine;
+    private final Object identity;
+    private final long start;
+    private final long end;
+    private final long grain;
+
+    private ParallelRange(Interpreter parent, LoxCallable function,
+                          LoxCallable combine, Object identity,
+                          long start, long end, long grain) {
+        this.parent = parent;
+        this.function = function;
+        this.combine = combine;
+        this.identity = identity;
+        this.start = start;
+        this.end = end;
+        this.grain = grain;
+    }
+
+    // Calls function(i) for every i in [start, end).
+    static void forEach(Interpreter interpreter, Object function,
+                        Object start, Object end) {
+        run(interpreter, callable(function, 1), null, null,
+            index(start), index(end), 0);
+    }
+
+    // Folds [start, end) with function(accumulator, i). Each piece folds its
+    // own numbers starting from identity, and combine(left, right) then
+    // merges the pieces' results in order. For the answer not to depend on
+    // how the range was split, combine must be associative with identity as
+    // its identity, and combining two folds must equal folding both pieces:
+    //
+    //     fun addSquare(sum, i) { return sum + i * i; }
+    //     fun add(a, b) { return a + b; }
+    //     print parallelReduce(addSquare, 0, 1000, 0, add);
+    static Object reduce(Interpreter interpreter, Object function,
+                         Object start, Object end, Object identity,
+                         Object combine) {
+        return run(interpreter, callable(function, 2), callable(combine, 2),
+            identity, index(start), index(end), 0);
+    }
+
+    // Splits the range into pieces of at most grain numbers, or of a size
+    // picked from the pool's parallelism when grain is 0.
+    static Object run(Interpreter interpreter, LoxCallable function,
+                      LoxCallable combine, Object identity,
+                      long from, long to, long grain) {
+        if (to <= from) {
+            return identity;
+        }
+        share(function);
+        share(combine);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        if (grain == 0) {
+            long pieces = (long) pool.getParallelism() * PIECES_PER_WORKER;
+            grain = Math.max(1, (to - from) / pieces);
+        }
+        return pool.invoke(new ParallelRange(interpreter, function, combine,
+            identity, from, to, grain));
+    }
+
+    private static void share(LoxCallable function) {
+        if (function instanceof LoxFunction) {
+            ((LoxFunction) function).share();
+        }
+    }
+
+    @Override
+    protected Object compute() {
+        if (end - start <= grain) {
+            return computeDirectly();
+        }
+        long middle = start + (end - start) / 2;
+        ParallelRange left = new ParallelRange(parent, function, combine,
+            identity, start, middle, grain);
+        ParallelRange right = new ParallelRange(parent, function, combine,
+            identity, middle, end, grain);
+        left.fork();
+        Object rightResult = right.compute();
+        Object leftResult = left.join();
+        if (combine == null) {
+            return null;
+        }
+        return combine.call(new Interpreter(parent),
+            Arrays.asList(leftResult, rightResult));
+    }
+
+    private Object computeDirectly() {
+        Interpreter interpreter = new Interpreter(parent);
+        Object accumulator = identity;
+        for (long i = start; i < end; i++) {
+            Object value = (double) i;
+            if (combine != null) {
+                accumulator = function.call(interpreter,
+                    Arrays.asList(accumulator, value));
+            } else {
+                function.call(interpreter, Arrays.asList(value));
+            }
+        }
+        return accumulator;
+    }
+
+    private static LoxCallable callable(Object function, int arity) {
+        if (!(function instanceof LoxCallable)
+            || ((LoxCallable) function).arity() != arity) {
+            throw new NativeError("Expected a function that takes " + arity
+                + (arity == 1 ? " argument." : " arguments."));
+        }
+        return (LoxCallable) function;
+    }
+
+    private static long index(Object bound) {
+        if (!(bound instanceof Double)
+            || (double) bound != Math.floor((double) bound)
+            || Double.isInfinite((double) bound)) {
+            throw new NativeError("Range bounds must be integers.");
+        }
+        return (long) (double) bound;
+    }
+}
@@ -11,10 +11,34 @@ class Parser {
     private static class ParseError extends RuntimeException {}
 
     private final List<Token> tokens;
+    private final ErrorReporter reporter;
     private int current = 0;
+    // Every import in the program, nested ones included, so the engine can
+    // start loading the modules before the program is resolved.
+    private final List<Stmt.Import> imports = new ArrayList<>();
+    // Set to skip the bodies of top-level functions and methods. See
+    // LazyBody.
+    private final LazyBody.Source lazy;
+    // How many blocks and function bodies the parser is inside.
+    private int depth = 0;
+    // Set to resolve each node as it is built, instead of walking the tree
+    // again afterwards. The caller finishes with resolver.markPure().
+    private final Resolver resolver;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter reporter) {
+        this(tokens, reporter, null);
+    }
+
+    Parser(List<Token> tokens, ErrorReporter reporter, LazyBody.Source lazy) {
+        this(tokens, reporter, lazy, null);
+    }
+
+    Parser(List<Token> tokens, ErrorReporter reporter, LazyBody.Source lazy,
+           Resolver resolver) {
         this.tokens = tokens;
+        this.reporter = reporter;
+        this.lazy = lazy;
+        this.resolver = resolver;
     }
 
     
@@ -27,12 +51,17 @@ class Parser {
         return statements;
     }
 
+    List<Stmt.Import> imports() {
+        return imports;
+    }
+
 
     // Production Rules *******************************************************
 
     // declaration → classDecl
     //             | funDecl
     //             | varDecl
+    //             | importDecl
     //             | statement ;
     //
     // funDecl  → "fun" function ;
@@ -48,6 +77,9 @@ class Parser {
             if (match(VAR)) {
                 return varDeclaration();
             }
+            if (match(IMPORT)) {
+                return importDeclaration();
+            }
             return statement();
         } catch (ParseError error) {
             synchronize();
@@ -69,8 +101,16 @@ class Parser {
         consume(LEFT_BRACE, "Expect '{' before class body.");
     
         List<Stmt.Function> methods = new ArrayList<>();
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-          methods.add(function("method"));
+        Resolver.Frame frame = resolver == null
+            ? null : resolver.beginClass(name, superclass);
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+              methods.add(function("method", superclass != null));
+            }
+        } finally {
+            if (frame != null) {
+                resolver.endClass(frame, superclass != null);
+            }
         }
     
         consume(RIGHT_BRACE, "Expect '}' after class body.");
@@ -103,7 +143,12 @@ class Parser {
             return whileStatement();
         }
         if (match(LEFT_BRACE)) {
-            return new Stmt.Block(block());
+            beginScope();
+            try {
+                return new Stmt.Block(block());
+            } finally {
+                endScope();
+            }
         }
         return expressionStatement();
     }
@@ -112,52 +157,75 @@ class Parser {
     //                   expression? ";"
     //                   expression? ")" statement ;
     // 
+    // The blocks the loop is desugared into are resolved as they are
+    // parsed, so their scopes open before the clauses that end up in them.
     private Stmt forStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
     
-        // Handle initilaiser...
-        Stmt initializer;
-        if (match(SEMICOLON)) {
-            initializer = null;
-        } else if (match(VAR)) {
-            initializer = varDeclaration();
-        } else {
-            initializer = expressionStatement();
+        boolean outerScope = !check(SEMICOLON);
+        if (outerScope) {
+            beginScope();
         }
+        try {
+            // Handle initilaiser...
+            Stmt initializer;
+            if (match(SEMICOLON)) {
+                initializer = null;
+            } else if (match(VAR)) {
+                initializer = varDeclaration();
+            } else {
+                initializer = expressionStatement();
+            }
 
-        // Handle conditional...
-        Expr condition = null;
-        if (!check(SEMICOLON)) {
-            condition = expression();
-        }
-        consume(SEMICOLON, "Expect ';' after loop condition.");
+            // Handle conditional...
+            Expr condition = null;
+            if (!check(SEMICOLON)) {
+                condition = expression();
+            }
+            consume(SEMICOLON, "Expect ';' after loop condition.");
 
-        // Handle post step...
-        Expr increment = null;
-        if (!check(RIGHT_PAREN)) {
-            increment = expression();
-        }
-        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+            Expr increment = null;
+            Stmt body;
+            boolean innerScope = !check(RIGHT_PAREN);
+            if (innerScope) {
+                beginScope();
+            }
+            try {
+                // Handle post step...
+                if (!check(RIGHT_PAREN)) {
+                    increment = expression();
+                }
+                consume(RIGHT_PAREN, "Expect ')' after for clauses.");
 
-        // Handle statement via 'de-sugaring'...
-        Stmt body = statement();
+                // Handle statement via 'de-sugaring'...
+                body = statement();
+            } finally {
+                if (innerScope) {
+                    endScope();
+                }
+            }
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(
-                body,
-                new Stmt.Expression(increment)));
-        }
+            if (increment != null) {
+                body = new Stmt.Block(Arrays.asList(
+                    body,
+                    new Stmt.Expression(increment)));
+            }
 
-        if (condition == null) {
-            condition = new Expr.Literal(true);
-        }
-        body = new Stmt.While(condition, body);
+            if (condition == null) {
+                condition = new Expr.Literal(true);
+            }
+            body = new Stmt.While(condition, body);
 
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
+            if (initializer != null) {
+                body = new Stmt.Block(Arrays.asList(initializer, body));
+            }
 
-        return body;
+            return body;
+        } finally {
+            if (outerScope) {
+                endScope();
+            }
+        }
     }
 
     // ifStmt    → "if" "(" expression ")" statement ( "else" statement )? ;
@@ -181,8 +249,13 @@ class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
     
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-          statements.add(declaration());
+        depth++;
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+              statements.add(declaration());
+            }
+        } finally {
+            depth--;
         }
     
         consume(RIGHT_BRACE, "Expect '}' after block.");
@@ -194,6 +267,9 @@ class Parser {
     private Stmt printStatement() {
         Expr value = expression();
         consume(SEMICOLON, "Expect ';' after value.");
+        if (resolver != null) {
+            resolver.impure();
+        }
         return new Stmt.Print(value);
     }
 
@@ -207,13 +283,20 @@ class Parser {
         }
     
         consume(SEMICOLON, "Expect ';' after return value.");
-        return new Stmt.Return(keyword, value);
+        Stmt.Return stmt = new Stmt.Return(keyword, value);
+        if (resolver != null) {
+            resolver.resolveReturn(stmt);
+        }
+        return stmt;
     }
 
     // varDecl → "var" IDENTIFIER ( "=" expression )? ";" ;
     //
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
+        if (resolver != null) {
+            resolver.declare(name);
+        }
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -221,10 +304,45 @@ class Parser {
         }
 
         consume(SEMICOLON, "Expect ';' after variable declaration.");
+        if (resolver != null) {
+            resolver.define(name);
+        }
        return new Stmt.Var(name, initializer);
     }
 
 
+    // importDecl → "import" STRING ( "as" IDENTIFIER )? ";" ;
+    //
+    // Without "as", the module is named after its file: "lib/strings.lox"
+    // binds strings.
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+
+        Token name;
+        if (check(IDENTIFIER) && peek().lexeme.equals("as")) {
+            advance();
+            name = consume(IDENTIFIER, "Expect module name after 'as'.");
+        } else {
+            String file = ((String) path.literal).replaceAll(".*[/\\\\]", "");
+            String base = file.endsWith(".lox")
+                ? file.substring(0, file.length() - 4) : file;
+            if (!base.matches("[A-Za-z_][A-Za-z_0-9]*")) {
+                throw error(peek(), "Expect 'as' and a name for this module.");
+            }
+            name = new Token(IDENTIFIER, base, null, path.line);
+        }
+
+        consume(SEMICOLON, "Expect ';' after import.");
+        Stmt.Import stmt = new Stmt.Import(keyword, path, name);
+        imports.add(stmt);
+        if (resolver != null) {
+            resolver.resolveImport(stmt);
+        }
+        return stmt;
+    }
+
+
     // whileStmt → "while" "(" expression ")" statement ;
     //
     private Stmt whileStatement() {
@@ -249,6 +367,10 @@ class Parser {
     // function → IDENTIFIER "(" parameters? ")" block ;
     // 
     private Stmt.Function function(String kind) {
+        return function(kind, false);
+    }
+
+    private Stmt.Function function(String kind, boolean subclass) {
         Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
 
         // Parse Parameters List
@@ -267,194 +389,291 @@ class Parser {
 
         // Parse Function Body
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
-    }
-
-
-    // Binary Expression Operations
-    //
-
-    // expression → assignment ;
-    //
-    private Expr expression() {
-        return assignment();
-    }
-    
-
-    // assignment → ( call "." )? IDENTIFIER "=" assignment
-    //            | logic_or;
-    //
-    private Expr assignment() {
-        Expr expr = or();
-    
-        if (match(EQUAL)) {
-            Token equals = previous();
-            // Recursively call assignment to evaluate the value.
-            // This is possible as assignment is rught associative.
-            Expr value = assignment();
-        
-            // Trick: Check the expression is a valid assignemnt target.
-            // This trick works because it turns out that every valid 
-            // assignment target happens to also be valid syntax as a 
-            // normal expression.
-            if (expr instanceof Expr.Variable) {
-                // Evaluate the target
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get)expr;
-                return new Expr.Set(get.object, get.name, value);
+        boolean skip = lazy != null && depth == 0;
+        Resolver.Frame frame = null;
+        if (resolver != null) {
+            Resolver.FunctionType type = Resolver.FunctionType.FUNCTION;
+            if (kind.equals("method")) {
+                type = name.lexeme.equals("init")
+                    ? Resolver.FunctionType.INITIALIZER
+                    : Resolver.FunctionType.METHOD;
             }
-        
-            error(equals, "Invalid assignment target."); 
+            frame = resolver.beginFunction(name, parameters, type, skip);
         }
-    
-        return expr;
-    }
-
-
-    // logic_or   → logic_and ( "or" logic_and )* ;
-    //
-    private Expr or() {
-        Expr expr = and();
-    
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-    
-        return expr;
-    }
-
-
-    // logic_and  → equality ( "and" equality )* ;
-    //
-    private Expr and() {
-        Expr expr = equality();
-    
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+        Stmt.Function function = null;
+        try {
+            if (skip) {
+                function = new Stmt.Function(name, parameters, null);
+                function.lazy = skipBody(name, parameters,
+                    kind.equals("method"), subclass);
+            } else {
+                function = new Stmt.Function(name, parameters, block());
+            }
+            return function;
+        } finally {
+            if (frame != null) {
+                resolver.endFunction(frame, function);
+            }
         }
-    
-        return expr;
     }
 
-    // equality → comparison ( ( "!=" | "==" ) comparison )* ;
-    //
-    private Expr equality() {
-        Expr expr = comparison();
-    
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    // Finds the end of a body by matching braces, checking that its
+    // parentheses balance along the way. The rest waits for LazyBody.
+    private LazyBody skipBody(Token name, List<Token> parameters,
+                              boolean method, boolean subclass) {
+        int start = current;
+        int braces = 1;
+        int parens = 0;
+        while (!isAtEnd()) {
+            Token token = advance();
+            switch (token.type) {
+                case LEFT_PAREN:
+                    parens++;
+                    break;
+                case RIGHT_PAREN:
+                    if (--parens < 0) {
+                        throw error(token, "Expect expression.");
+                    }
+                    break;
+                case LEFT_BRACE:
+                    braces++;
+                    break;
+                case RIGHT_BRACE:
+                    if (parens > 0) {
+                        throw error(token, "Expect ')'.");
+                    }
+                    if (--braces == 0) {
+                        return new LazyBody(lazy, start, current - 1, name,
+                            parameters, method, subclass);
+                    }
+                    break;
+                default:
+                    break;
+            }
         }
-    
-        return expr;
+        throw error(peek(), "Expect '}' after block.");
     }
 
 
-    // comparison → addition ( ( ">" | ">=" | "<" | "<=" ) addition )* ;
-    //
-    private Expr comparison() {
-        Expr expr = addition();
-    
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = addition();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-    
-        return expr;
-    }
-
-    
-    // addition → multiplication ( ( "-" | "+" ) multiplication )* ;
+    // Expressions
     //
-    private Expr addition() {
-        Expr expr = multiplication();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = multiplication();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    
+    // expression     → assignment ;
+    // assignment     → ( call "." )? IDENTIFIER "=" assignment
+    //                | logic_or ;
+    // logic_or       → logic_and ( "or" logic_and )* ;
+    // logic_and      → equality ( "and" equality )* ;
+    // equality       → comparison ( ( "!=" | "==" ) comparison )* ;
+    // comparison     → addition ( ( ">" | ">=" | "<" | "<=" ) addition )* ;
+    // addition       → multiplication ( ( "-" | "+" ) multiplication )* ;
     // multiplication → unary ( ( "/" | "*" ) unary )* ;
+    // unary          → ( "!" | "-" ) unary | call ;
+    // call           → primary ( "(" arguments? ")" | "." IDENTIFIER )* ;
     //
-    private Expr multiplication() {
-        Expr expr = unary();
+    // Rather than one method per level, which recurses once per nested
+    // parenthesis or operator, expressions are parsed with a stack of
+    // operands and a stack of operators and brackets still waiting for their
+    // right-hand side. Generated code with thousands of levels of nesting
+    // cannot overflow the Java stack.
+
+    // Precedence of what can wait on the operator stack. Brackets are never
+    // reduced by an operator: only their closing token ends them.
+    private static final int BRACKET = 0;
+    private static final int ASSIGNMENT = 1;
+    private static final int OR_PRECEDENCE = 2;
+    private static final int AND_PRECEDENCE = 3;
+    private static final int EQUALITY = 4;
+    private static final int COMPARISON = 5;
+    private static final int ADDITION = 6;
+    private static final int MULTIPLICATION = 7;
+    private static final int UNARY = 8;
+
+    // An operator, an open parenthesis or a call whose right-hand side is
+    // still being parsed.
+    private static final class Pending {
+        final int precedence;
+        final Token token;
+        // The target of an assignment, or the callee of a call.
+        final Expr left;
+        // Set for a call: the arguments parsed so far.
+        final List<Expr> arguments;
+
+        Pending(int precedence, Token token, Expr left,
+                List<Expr> arguments) {
+            this.precedence = precedence;
+            this.token = token;
+            this.left = left;
+            this.arguments = arguments;
+        }
+    }
+
+    // The stacks expression() works on. It never calls itself, so one pair
+    // serves every expression. A syntax error may leave them dirty.
+    private final List<Expr> operands = new ArrayList<>();
+    private final List<Pending> pending = new ArrayList<>();
 
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr expression() {
+        operands.clear();
+        pending.clear();
+        while (true) {
+            // Prefix operators and open parentheses come before an operand.
+            if (match(BANG, MINUS)) {
+                pending.add(new Pending(UNARY, previous(), null, null));
+                continue;
+            }
+            if (match(LEFT_PAREN)) {
+                pending.add(new Pending(BRACKET, previous(), null, null));
+                continue;
+            }
+            Expr operand = primary();
+
+            // Then calls and property accesses, closing brackets, and the
+            // operator before the next operand.
+            while (operand != null) {
+                int precedence = infixPrecedence(peek().type);
+                if (match(LEFT_PAREN)) {
+                    if (check(RIGHT_PAREN)) {
+                        operand = finishCall(operand, new ArrayList<Expr>());
+                    } else {
+                        pending.add(new Pending(BRACKET, previous(), operand,
+                            new ArrayList<Expr>()));
+                        operand = null;
+                    }
+                } else if (match(DOT)) {
+                    Token name = consume(IDENTIFIER,
+                        "Expect property name after '.'.");
+                    operand = new Expr.Get(operand, name);
+                    // Fields can change between calls, so a function that
+                    // reads or sets one is not pure.
+                    if (resolver != null) {
+                        resolver.impure();
+                    }
+                } else if (precedence == ASSIGNMENT) {
+                    // Right associative: the value waits for everything
+                    // after the '='.
+                    operands.add(operand);
+                    reduce(OR_PRECEDENCE);
+                    pending.add(new Pending(ASSIGNMENT, advance(),
+                        operands.remove(operands.size() - 1), null));
+                    operand = null;
+                } else if (precedence > ASSIGNMENT) {
+                    operands.add(operand);
+                    reduce(precedence);
+                    pending.add(new Pending(precedence, advance(), null, null));
+                    operand = null;
+                } else {
+                    // The innermost bracket's contents end here.
+                    operands.add(operand);
+                    reduce(ASSIGNMENT);
+                    if (pending.isEmpty()) {
+                        return operands.remove(0);
+                    }
+                    Pending bracket = pending.get(pending.size() - 1);
+                    Expr inner = operands.remove(operands.size() - 1);
+                    if (bracket.arguments == null) {
+                        consume(RIGHT_PAREN, "Expect ')' after expression.");
+                        pending.remove(pending.size() - 1);
+                        operand = new Expr.Grouping(inner);
+                    } else if (match(COMMA)) {
+                        bracket.arguments.add(inner);
+                        if (bracket.arguments.size() >= 8) {
+                            error(peek(), "Cannot have more than 8 arguments.");
+                        }
+                        operand = null;
+                    } else {
+                        bracket.arguments.add(inner);
+                        pending.remove(pending.size() - 1);
+                        operand = finishCall(bracket.left, bracket.arguments);
+                    }
+                }
+            }
         }
-
-        return expr;
     }
 
-
-    // Unary Expression Operations
-    //
-
-    // unary → ( "!" | "-" ) unary
-    //   | call ;
-    //
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-          Token operator = previous();
-          Expr right = unary();
-          return new Expr.Unary(operator, right);
+    // The precedence of a binary operator or '=', or BRACKET if the token
+    // cannot continue an expression.
+    private static int infixPrecedence(TokenType type) {
+        switch (type) {
+            case EQUAL:
+                return ASSIGNMENT;
+            case OR:
+                return OR_PRECEDENCE;
+            case AND:
+                return AND_PRECEDENCE;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return EQUALITY;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return COMPARISON;
+            case MINUS:
+            case PLUS:
+                return ADDITION;
+            case SLASH:
+            case STAR:
+                return MULTIPLICATION;
+            default:
+                return BRACKET;
+        }
+    }
+
+    // Builds the waiting operators that bind at least as tightly as the
+    // given precedence, innermost first.
+    private void reduce(int precedence) {
+        while (!pending.isEmpty()) {
+            Pending top = pending.get(pending.size() - 1);
+            if (top.precedence == BRACKET || top.precedence < precedence) {
+                return;
+            }
+            pending.remove(pending.size() - 1);
+            Expr right = operands.remove(operands.size() - 1);
+            Expr expr;
+            if (top.precedence == UNARY) {
+                expr = new Expr.Unary(top.token, right);
+            } else if (top.precedence == ASSIGNMENT) {
+                expr = assignment(top.left, top.token, right);
+            } else if (top.precedence <= AND_PRECEDENCE) {
+                expr = new Expr.Logical(operands.remove(operands.size() - 1),
+                    top.token, right);
+            } else {
+                expr = new Expr.Binary(operands.remove(operands.size() - 1),
+                    top.token, right);
+            }
+            operands.add(expr);
         }
-    
-        return call();
     }
 
-
-    // call → primary ( "(" arguments? ")" | "." IDENTIFIER )* ;
-    //
-    private Expr call() {
-        Expr expr = primary();
-
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER,
-                    "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
-            }
-            else {
-                break;
+    private Expr assignment(Expr target, Token equals, Expr value) {
+        // Trick: Check the expression is a valid assignemnt target.
+        // This trick works because it turns out that every valid 
+        // assignment target happens to also be valid syntax as a 
+        // normal expression.
+        if (target instanceof Expr.Variable) {
+            // Evaluate the target
+            Token name = ((Expr.Variable) target).name;
+            Expr.Assign assign = new Expr.Assign(name, value);
+            if (resolver != null) {
+                resolver.resolveAssign(assign);
             }
+            return assign;
+        } else if (target instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)target;
+            return new Expr.Set(get.object, get.name, value);
         }
 
-        return expr;
+        error(equals, "Invalid assignment target."); 
+        return target;
     }
 
-    private Expr finishCall(Expr callee) {
-        List<Expr> arguments = new ArrayList<>();
-        if (!check(RIGHT_PAREN)) {
-            do {
-                if (arguments.size() >= 8) {
-                    error(peek(), "Cannot have more than 8 arguments.");
-                }
-                arguments.add(expression());
-            } while (match(COMMA));
-        }
-    
+    private Expr finishCall(Expr callee, List<Expr> arguments) {
         Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
     
-        return new Expr.Call(callee, paren, arguments);
+        Expr.Call call = new Expr.Call(callee, paren, arguments);
+        if (resolver != null) {
+            resolver.resolveCall(call);
+        }
+        return call;
     }
 
 
@@ -466,6 +685,8 @@ class Parser {
     // primary → "true" | "false" | "nil" | "this"
     //     | NUMBER | STRING | IDENTIFIER | "(" expression ")"
     //     | "super" "." IDENTIFIER ;
+    //
+    // A parenthesised expression is handled by expression().
     private Expr primary() {
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(TRUE)) return new Expr.Literal(true);
@@ -480,21 +701,28 @@ class Parser {
             consume(DOT, "Expect '.' after 'super'.");      
             Token method = consume(IDENTIFIER,              
                 "Expect superclass method name.");          
-            return new Expr.Super(keyword, method);         
+            Expr.Super expr = new Expr.Super(keyword, method);
+            if (resolver != null) {
+                resolver.resolveSuper(expr);
+            }
+            return expr;
         }
 
         if (match(THIS)) {
-            return new Expr.This(previous());
+            Expr.This expr = new Expr.This(previous());
+            if (resolver != null) {
+                resolver.resolveThis(expr);
+            }
+            return expr;
         }
 
         if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
-        }
-
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+            Expr.Variable expr = new Expr.Variable(previous());
+            // An assignment target is resolved as the Expr.Assign it becomes.
+            if (resolver != null && !check(EQUAL)) {
+                resolver.resolveVariable(expr);
+            }
+            return expr;
         }
 
         throw error(peek(), "Expect expression.");
@@ -545,10 +773,22 @@ class Parser {
         throw error(peek(), message);
     }
 
+    private void beginScope() {
+        if (resolver != null) {
+            resolver.beginScope();
+        }
+    }
+
+    private void endScope() {
+        if (resolver != null) {
+            resolver.endScope();
+        }
+    }
+
     // Error Handling
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
@@ -563,6 +803,7 @@ class Parser {
                 case CLASS:
                 case FUN:
                 case VAR:
+                case IMPORT:
                 case FOR:
                 case IF:
                 case WHILE:
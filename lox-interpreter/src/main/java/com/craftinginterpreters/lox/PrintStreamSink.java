@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// Prints through a caller's PrintStream, which does its own buffering.
+final class PrintStreamSink extends OutputSink {
+    private final PrintStream out;
+
+    PrintStreamSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    void println(String text) {
+        out.println(text);
+    }
+
+    @Override
+    void flush() {
+        out.flush();
+    }
+}
@@ -1,24 +1,70 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-
+import java.util.Set;
+
+// Works out how many scopes out each local variable is declared, and which
+// top-level functions are pure.
+//
+// The engine's parser calls the hooks at the bottom of this class as it
+// builds each node, so the program is resolved in the same pass that parses
+// it. Walking a parsed tree with resolveProgram() gives the same result, for
+// tools. That walk recurses, so unlike the parser it is not safe on deeply
+// nested generated code.
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    private final SymbolTable symbols;
+    private final ErrorReporter reporter;
 
     // Keeps track of the stack of scopes currently… uh… in scope
     // Denotes the variables name; and wether it has finsihed being initilaised.
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final List<Map<String, Boolean>> scopes = new ArrayList<>();
 
     private FunctionType currentFunction = FunctionType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // The top-level function being resolved, and all of them so far. See
+    // markPure().
+    private Purity purity = null;
+    private final List<Purity> candidates = new ArrayList<>();
+
+    // What a top-level function does that could make its result depend on
+    // more than its arguments.
+    private static final class Purity {
+        // Set once the function's body has been resolved.
+        Stmt.Function function;
+        boolean impure = false;
+        // Globals it reads. All must turn out to be pure functions too.
+        final Set<String> globals = new LinkedHashSet<>();
+    }
+
+    // What a function or class replaced while it is resolved, put back by
+    // endFunction() or endClass().
+    static final class Frame {
+        private final FunctionType function;
+        private final ClassType type;
+        private final Purity purity;
+        // The function's own entry in candidates, if it may be pure.
+        private Purity candidate;
+        // Set for a top-level function whose body the parser skipped.
+        private boolean lazyCandidate;
+        private boolean scoped;
+
+        private Frame(FunctionType function, ClassType type, Purity purity) {
+            this.function = function;
+            this.type = type;
+            this.purity = purity;
+        }
+    }
+
+    Resolver(SymbolTable symbols, ErrorReporter reporter) {
+        this.symbols = symbols;
+        this.reporter = reporter;
     }
 
-    private enum FunctionType {
+    enum FunctionType {
         NONE,
         FUNCTION,
         INITIALIZER,
@@ -26,7 +72,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
 
-    private enum ClassType {
+    enum ClassType {
             NONE,
             CLASS,
             SUBCLASS
@@ -45,27 +91,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        ClassType enclosingClass = currentClass;
-        currentClass = ClassType.CLASS;
-
-        declare(stmt.name);
-
-
-        if (stmt.superclass != null) {     
-            currentClass = ClassType.SUBCLASS;                        
-            resolve(stmt.superclass);
-        }    
-                           
-
-        define(stmt.name);
-
-        if (stmt.superclass != null) {
-            beginScope();
-            scopes.peek().put("super", true);
-        }
-        
-        beginScope();
-        scopes.peek().put("this", true);
+        Frame frame = beginClass(stmt.name, stmt.superclass);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -73,23 +99,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             }
             resolveFunction(method, declaration); 
         }
-        endScope();
-
-        if (stmt.superclass != null) {
-            endScope();
-        }
-
-        currentClass = enclosingClass;
-
+        endClass(frame, stmt.superclass != null);
         return null;
     }
-  
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
-        define(stmt.name);
-
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
@@ -104,22 +119,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        resolveImport(stmt);
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
         resolve(stmt.expression);
         return null;
     }
 
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
-        if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Cannot return from top-level code.");
-        }
+        resolveReturn(stmt);
         if (stmt.value != null) {
-            if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword,
-                    "Cannot return a value from an initializer.");
-            }
             resolve(stmt.value);
         }
         return null;
@@ -151,7 +167,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveAssign(expr);
         return null;
     }
 
@@ -175,32 +191,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSetExpr(Expr.Set expr) {
+        impure();
         resolve(expr.value);
         resolve(expr.object);
         return null;
     }
 
-    @Override                                    
+    @Override
     public Void visitSuperExpr(Expr.Super expr) {
-        if (currentClass == ClassType.NONE) {                      
-            Lox.error(expr.keyword,                                  
-                "Cannot use 'super' outside of a class.");           
-        } else if (currentClass != ClassType.SUBCLASS) {           
-            Lox.error(expr.keyword,                                  
-                "Cannot use 'super' in a class with no superclass.");
-        } 
-        resolveLocal(expr, expr.keyword);          
-        return null;                               
-    }        
+        resolveSuper(expr);
+        return null;
+    }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
-        if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
-                "Cannot use 'this' outside of a class.");
-            return null;
-          }
-        resolveLocal(expr, expr.keyword);
+        resolveThis(expr);
         return null;
     }
 
@@ -213,6 +218,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
+        resolveCall(expr);
         for (Expr argument : expr.arguments) {
             resolve(argument);
         }
@@ -221,6 +227,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitGetExpr(Expr.Get expr) {
+        // Fields can change between calls.
+        impure();
         resolve(expr.object);
         return null;
     }
@@ -234,14 +242,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-      if (!scopes.isEmpty() &&
-          scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-        Lox.error(expr.name,
-            "Cannot read local variable in its own initializer.");
-      }
-  
-      resolveLocal(expr, expr.name);
-      return null;
+        resolveVariable(expr);
+        return null;
+    }
+
+    void resolveProgram(List<Stmt> statements) {
+        resolve(statements);
+        markPure();
     }
 
     void resolve(List<Stmt> statements) {
@@ -258,57 +265,300 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    private void resolveFunction( Stmt.Function function, FunctionType type) {
-        FunctionType enclosingFunction = currentFunction;
+    private void resolveFunction(Stmt.Function function, FunctionType type) {
+        Frame frame = beginFunction(function.name, function.parameters, type,
+            function.lazy != null);
+        // A body the parser skipped is resolved when LazyBody parses it, on
+        // its first call.
+        if (function.lazy == null) {
+            resolve(function.body);
+        }
+        endFunction(frame, function);
+    }
+
+    // Opens the scopes of the top-level function or method LazyBody is
+    // about to parse a body of, for the parser to resolve it in.
+    void beginLazy(List<Token> parameters, boolean method, boolean subclass,
+                   boolean initializer) {
+        FunctionType type = FunctionType.FUNCTION;
+        if (method) {
+            currentClass = subclass ? ClassType.SUBCLASS : ClassType.CLASS;
+            if (subclass) {
+                beginScope();
+                scopes.get(scopes.size() - 1).put("super", true);
+            }
+            beginScope();
+            scopes.get(scopes.size() - 1).put("this", true);
+            type = initializer ? FunctionType.INITIALIZER : FunctionType.METHOD;
+        } else {
+            purity = new Purity();
+        }
         currentFunction = type;
-
         beginScope();
-        for (Token param : function.parameters) {
+        for (Token param : parameters) {
             declare(param);
             define(param);
         }
-        resolve(function.body);
-        endScope();
-        currentFunction = enclosingFunction;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    // After beginLazy() and the body of a function: the globals it reads,
+    // or null if it is a method or does something impure.
+    Set<String> lazyGlobals() {
+        return purity == null || purity.impure ? null : purity.globals;
     }
 
-    private void endScope() {
-        scopes.pop();
+    void impure() {
+        if (purity != null) {
+            purity.impure = true;
+        }
+    }
+
+    // Marks the top-level functions whose result depends only on their
+    // arguments: they read only parameters and locals, have no side effects
+    // and only read globals that name other such functions declared once in
+    // this program. The interpreter checks those globals are still bound to
+    // the same functions before reusing a result.
+    void markPure() {
+        Map<String, Purity> byName = new HashMap<>();
+        for (Purity candidate : candidates) {
+            if (byName.containsKey(candidate.function.name.lexeme)) {
+                byName.get(candidate.function.name.lexeme).impure = true;
+                candidate.impure = true;
+            }
+            byName.put(candidate.function.name.lexeme, candidate);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Purity candidate : candidates) {
+                if (candidate.impure) {
+                    continue;
+                }
+                for (String global : candidate.globals) {
+                    Purity callee = byName.get(global);
+                    if (callee == null || callee.impure) {
+                        candidate.impure = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Purity candidate : candidates) {
+            if (candidate.impure) {
+                continue;
+            }
+            int[] dependencies = new int[candidate.globals.size()];
+            int i = 0;
+            for (String global : candidate.globals) {
+                dependencies[i++] = symbols.intern(global);
+            }
+            candidate.function.dependencies = dependencies;
+            candidate.function.pure = true;
+        }
+        candidates.clear();
+    }
+
+    void beginScope() {
+        scopes.add(new HashMap<String, Boolean>());
+    }
+
+    void endScope() {
+        scopes.remove(scopes.size() - 1);
     }
 
     // Declare a new variable.
-    private void declare(Token name) {
+    void declare(Token name) {
         if (scopes.isEmpty()) {
             return;
         }
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Boolean> scope = scopes.get(scopes.size() - 1);
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            reporter.error(name,
                 "Variable with this name already declared in this scope.");
         }
         scope.put(name.lexeme, false);
     }
 
     // Define a new variable.
-    private void define(Token name) {
+    void define(Token name) {
         if (scopes.isEmpty()) {
             return;
         }
-        scopes.peek().put(name.lexeme, true);
+        scopes.get(scopes.size() - 1).put(name.lexeme, true);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Returns how many scopes out the name is declared.
+    private int resolveLocal(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
         // Not found. Assume it is global.
+        return -1;
+    }
+
+    // Hooks ******************************************************************
+    //
+    // Each resolves one node whose children are already resolved, so the
+    // parser can call them as it builds the tree. Scoped constructs come in
+    // begin/end pairs around their contents.
+
+    Frame beginClass(Token name, Expr.Variable superclass) {
+        impure();
+        Frame frame = new Frame(currentFunction, currentClass, purity);
+        currentClass = ClassType.CLASS;
+
+        declare(name);
+        if (superclass != null) {
+            currentClass = ClassType.SUBCLASS;
+            resolveVariable(superclass);
+        }
+        define(name);
+
+        if (superclass != null) {
+            beginScope();
+            scopes.get(scopes.size() - 1).put("super", true);
+        }
+        beginScope();
+        scopes.get(scopes.size() - 1).put("this", true);
+        return frame;
+    }
+
+    void endClass(Frame frame, boolean subclass) {
+        endScope();
+        if (subclass) {
+            endScope();
+        }
+        currentClass = frame.type;
+    }
+
+    // Declares a function, unless it is a method, and opens the scope of its
+    // parameters. A lazy body gets no scope: beginLazy() opens one when the
+    // body is parsed.
+    Frame beginFunction(Token name, List<Token> parameters, FunctionType type,
+                        boolean lazy) {
+        Frame frame = new Frame(currentFunction, currentClass, purity);
+        if (type == FunctionType.FUNCTION) {
+            declare(name);
+            define(name);
+
+            // Only a function declared at the top level can be pure. One
+            // nested in it would capture its locals. One whose body is not
+            // parsed yet is checked by LazyBody when it is first called.
+            if (scopes.isEmpty() && !lazy) {
+                purity = new Purity();
+                candidates.add(purity);
+                frame.candidate = purity;
+            } else if (scopes.isEmpty()) {
+                frame.lazyCandidate = true;
+            } else {
+                impure();
+            }
+        }
+        if (!lazy) {
+            currentFunction = type;
+            beginScope();
+            frame.scoped = true;
+            for (Token param : parameters) {
+                declare(param);
+                define(param);
+            }
+        }
+        return frame;
+    }
+
+    // The function is null if parsing it failed.
+    void endFunction(Frame frame, Stmt.Function function) {
+        if (frame.scoped) {
+            endScope();
+        }
+        if (frame.candidate != null) {
+            if (function != null) {
+                frame.candidate.function = function;
+            } else {
+                // The body had a syntax error. There is nothing to memoize.
+                candidates.remove(frame.candidate);
+            }
+        }
+        if (frame.lazyCandidate && function != null) {
+            function.lazy.declare(function);
+        }
+        currentFunction = frame.function;
+        purity = frame.purity;
+    }
+
+    void resolveImport(Stmt.Import stmt) {
+        // Runs the module's code the first time.
+        impure();
+        declare(stmt.name);
+        define(stmt.name);
+    }
+
+    void resolveReturn(Stmt.Return stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            reporter.error(stmt.keyword, "Cannot return from top-level code.");
+        }
+        if (stmt.value != null && currentFunction == FunctionType.INITIALIZER) {
+            reporter.error(stmt.keyword,
+                "Cannot return a value from an initializer.");
+        }
+    }
+
+    void resolveAssign(Expr.Assign expr) {
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth < 0) {
+            expr.symbol = symbols.intern(expr.name.lexeme);
+            impure();
+        }
+    }
+
+    void resolveCall(Expr.Call expr) {
+        // A local could hold any function. A global is checked once the
+        // whole program is resolved.
+        if (!(expr.callee instanceof Expr.Variable)
+            || ((Expr.Variable) expr.callee).depth >= 0) {
+            impure();
+        }
+    }
+
+    void resolveSuper(Expr.Super expr) {
+        if (currentClass == ClassType.NONE) {
+            reporter.error(expr.keyword,
+                "Cannot use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+            reporter.error(expr.keyword,
+                "Cannot use 'super' in a class with no superclass.");
+        }
+        expr.depth = resolveLocal(expr.keyword);
+    }
+
+    void resolveThis(Expr.This expr) {
+        if (currentClass == ClassType.NONE) {
+            reporter.error(expr.keyword,
+                "Cannot use 'this' outside of a class.");
+            return;
+        }
+        expr.depth = resolveLocal(expr.keyword);
+    }
+
+    void resolveVariable(Expr.Variable expr) {
+        if (!scopes.isEmpty() && scopes.get(scopes.size() - 1)
+                .get(expr.name.lexeme) == Boolean.FALSE) {
+            reporter.error(expr.name,
+                "Cannot read local variable in its own initializer.");
+        }
+
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth < 0) {
+            expr.symbol = symbols.intern(expr.name.lexeme);
+            if (purity != null) {
+                purity.globals.add(expr.name.lexeme);
+            }
+        }
     }
 
 }
@@ -0,0 +1,117 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// A Lox string built by concatenation, kept as the two strings it joins
+// until someone needs its characters.
+//
+// Appending to a string in a loop then costs one small node per iteration
+// instead of a copy of everything so far. The characters are copied once,
+// when the rope is printed, compared or hashed, and the flat result replaces
+// the tree.
+//
+// Lox code cannot tell a rope from a String: stringify, isEqual and print
+// all go through toString().
+final class Rope implements CharSequence {
+    // Shorter results are copied right away. A node costs more than that.
+    private static final int MIN_LENGTH = 64;
+
+    private final int length;
+    // Each a String or a Rope until flattened, then null.
+    private Object left;
+    private Object right;
+    // Guarded by this.
+    private String flat;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // Both arguments are a String or a Rope.
+    static Object concat(Object left, Object right) {
+        int length = ((CharSequence) left).length()
+            + ((CharSequence) right).length();
+        if (length < 0) {
+            throw new OutOfMemoryError("String too long.");
+        }
+        if (length < MIN_LENGTH) {
+            return left.toString() + right.toString();
+        }
+        return new Rope(left, right, length);
+    }
+
+    // Strings and ropes with the same characters are the same Lox value.
+    static Object normalize(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (flat == null) {
+            flat = flatten();
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    // Copies the leaves right to left into one array. Ropes built in a loop
+    // are as deep as the loop ran, so this must not recurse.
+    private String flatten() {
+        char[] chars = new char[length];
+        int end = length;
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(left);
+        pending.push(right);
+        while (!pending.isEmpty()) {
+            Object part = pending.pop();
+            if (part instanceof Rope) {
+                Rope rope = (Rope) part;
+                synchronized (rope) {
+                    if (rope.flat == null) {
+                        pending.push(rope.left);
+                        pending.push(rope.right);
+                        continue;
+                    }
+                    part = rope.flat;
+                }
+            }
+            String string = (String) part;
+            end -= string.length();
+            string.getChars(0, string.length(), chars, end);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return isString(other) && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder event for a runtime error that stopped a program.
+@Name("com.craftinginterpreters.lox.RuntimeError")
+@Label("Lox Runtime Error")
+@Description("A Lox program stopped with a runtime error")
+@Category("Lox")
+@StackTrace(false)
+class RuntimeErrorEvent extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+}
@@ -9,6 +9,7 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
     private final String source;
+    private final ErrorReporter reporter;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
@@ -24,6 +25,7 @@ class Scanner {
         keywords.put("for",    FOR);
         keywords.put("fun",    FUN);
         keywords.put("if",     IF);
+        keywords.put("import", IMPORT);
         keywords.put("nil",    NIL);
         keywords.put("or",     OR);
         keywords.put("print",  PRINT);
@@ -35,8 +37,9 @@ class Scanner {
         keywords.put("while",  WHILE);
     }
 
-    Scanner(String source) {
+    Scanner(String source, ErrorReporter reporter) {
     this.source = source;
+    this.reporter = reporter;
     }
 
     List<Token> scanTokens() {
@@ -108,7 +111,7 @@ class Scanner {
                 identifier();
             } else {
                 // Unrecongised error.
-                Lox.error(line, "Unexpected character.");
+                reporter.error(line, "Unexpected character.");
             }
         break;
         }
@@ -159,7 +162,7 @@ class Scanner {
 
         // Unterminated string.
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            reporter.error(line, "Unterminated string.");
             return;
         }
 
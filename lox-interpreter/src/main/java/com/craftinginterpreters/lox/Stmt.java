@@ -9,6 +9,7 @@ abstract class Stmt {
     R visitExpressionStmt(Expression stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
+    R visitImportStmt(Import stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
@@ -65,6 +66,9 @@ abstract class Stmt {
     final Token name;
     final List<Token> parameters;
     final List<Stmt> body;
+    boolean pure;
+    int[] dependencies;
+    LazyBody lazy;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -81,6 +85,22 @@ abstract class Stmt {
     final Stmt thenBranch;
     final Stmt elseBranch;
   }
+  static class Import extends Stmt {
+    Import(Token keyword, Token path, Token name) {
+      this.keyword = keyword;
+      this.path = path;
+      this.name = name;
+    }
+
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+    final Token name;
+    String file;
+  }
   static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
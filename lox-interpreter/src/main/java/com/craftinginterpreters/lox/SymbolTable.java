@@ -0,0 +1,27 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+// Numbers every global name an engine has seen. The resolver stores the
+// number on each global site, so one compiled program can index straight
+// into the globals of whichever context runs it.
+final class SymbolTable {
+    private final ConcurrentMap<String, Integer> symbols =
+        new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    int intern(String name) {
+        Integer symbol = symbols.get(name);
+        if (symbol != null) {
+            return symbol;
+        }
+        return symbols.computeIfAbsent(name, key -> next.getAndIncrement());
+    }
+
+    void forEach(BiConsumer<String, Integer> action) {
+        symbols.forEach(action);
+    }
+}
@@ -16,18 +16,18 @@ public class GenerateAst {
 
         // Expression Syntax Node
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
+            "Assign   : Token name, Expr value ; int depth = -1, int symbol = -1",
             "Binary   : Expr left, Token operator, Expr right",
-            "Call     : Expr callee, Token paren, List<Expr> arguments",
+            "Call     : Expr callee, Token paren, List<Expr> arguments ; volatile JavaInterop.CallSite javaSite",
             "Get      : Expr object, Token name",
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Logical  : Expr left, Token operator, Expr right",
             "Set      : Expr object, Token name, Expr value",
-            "Super    : Token keyword, Token method",
-            "This     : Token keyword",
+            "Super    : Token keyword, Token method ; int depth = -1",
+            "This     : Token keyword ; int depth = -1",
             "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Variable : Token name ; int depth = -1, int symbol = -1, volatile GlobalEnvironment.Cache globalCache"
         ));
 
         // Statement Syntax Nodes
@@ -35,8 +35,9 @@ public class GenerateAst {
             "Block      : List<Stmt> statements",
             "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> parameters, List<Stmt> body",
+            "Function   : Token name, List<Token> parameters, List<Stmt> body ; boolean pure, int[] dependencies, LazyBody lazy",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+            "Import     : Token keyword, Token path, Token name ; String file",
             "Print      : Expr expression",
             "Return     : Token keyword, Expr value",
             "Var        : Token name, Expr initializer",
@@ -78,11 +79,18 @@ public class GenerateAst {
         String className, String fieldList) {
         writer.println("  static class " + className + " extends " +  baseName + " {");
 
+        // Fields after a ';' are not constructor parameters. The resolver
+        // fills them in before a program is published, or the interpreter
+        // uses them as caches at runtime.
+        String[] parts = fieldList.split(";");
+        String[] fields = parts[0].trim().split(", ");
+        String[] caches = parts.length > 1
+            ? parts[1].trim().split(", ") : new String[0];
+
         // Constructor.
-        writer.println("    " + className + "(" + fieldList + ") {");
+        writer.println("    " + className + "(" + parts[0].trim() + ") {");
 
         // Store parameters in fields.
-        String[] fields = fieldList.split(", ");
         for (String field : fields) {
         String name = field.split(" ")[1];
         writer.println("      this." + name + " = " + name + ";");
@@ -102,6 +110,9 @@ public class GenerateAst {
         for (String field : fields) {
         writer.println("    final " + field + ";");
         }
+        for (String cache : caches) {
+        writer.println("    " + cache + ";");
+        }
 
         writer.println("  }");
     }
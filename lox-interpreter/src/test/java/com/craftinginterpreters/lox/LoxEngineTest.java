@@ -0,0 +1,905 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import junit.framework.TestCase;
+
+public class LoxEngineTest extends TestCase {
+
+    private final LoxEngine engine = new LoxEngine();
+    // Parses function bodies on their first call.
+    private final LoxEngine lazy = lazyEngine();
+
+    private static LoxEngine lazyEngine() {
+        System.setProperty("lox.lazy", "true");
+        try {
+            return new LoxEngine();
+        } finally {
+            System.clearProperty("lox.lazy");
+        }
+    }
+
+    private String run(String source) throws LoxException {
+        return run(engine.compile(source));
+    }
+
+    private String run(LoxProgram program) throws LoxException {
+        return run(engine, program);
+    }
+
+    private String runLazily(String source) throws LoxException {
+        return run(lazy, lazy.compile(source));
+    }
+
+    private static String run(LoxEngine engine, LoxProgram program)
+        throws LoxException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LoxContext context = engine.createContext(new PrintStream(bytes, true));
+        engine.run(program, context);
+        return bytes.toString();
+    }
+
+    public void testRunsProgram() throws LoxException {
+        assertEquals("3\n", run("var a = 1; print a + 2;"));
+    }
+
+    public void testCompileErrorsAreCollected() {
+        try {
+            engine.compile("var = 1; print ;");
+            fail();
+        } catch (LoxCompileException error) {
+            assertEquals(2, error.getErrors().size());
+            assertEquals(65, error.exitCode());
+        }
+    }
+
+    public void testRuntimeErrorCarriesLine() throws LoxException {
+        try {
+            run("print 1;\nprint missing;");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertEquals(2, error.getLine());
+            assertEquals(70, error.exitCode());
+        }
+    }
+
+    public void testContextsAreIsolated() throws LoxException {
+        LoxContext first = engine.createContext();
+        engine.run(engine.compile("var shared = 1;"), first);
+        try {
+            run("print shared;");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertTrue(error.getMessage().contains("shared"));
+        }
+    }
+
+    public void testContextsRunInParallel() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                final int n = i;
+                results.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws LoxException {
+                        return run("fun fib(n) { if (n < 2) return n;"
+                            + " return fib(n - 1) + fib(n - 2); }"
+                            + " var x = " + n + "; print fib(15) + x;");
+                    }
+                }));
+            }
+            for (int i = 0; i < 16; i++) {
+                assertEquals((610 + i) + "\n", results.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testProgramIsSharedAcrossThreads() throws Exception {
+        final LoxProgram program = engine.compile(
+            "fun fib(n) { if (n < 2) return n;"
+            + " return fib(n - 1) + fib(n - 2); }"
+            + " var total = 0;"
+            + " for (var i = 0; i < 5; i = i + 1) total = total + fib(12);"
+            + " print total;");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                results.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws LoxException {
+                        return run(program);
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals("720\n", result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final String SQUARES =
+        "var squares = array();"
+        + " for (var i = 0; i < 1000; i = i + 1) push(squares, 0);"
+        + " fun square(i) { set(squares, i, i * i); }"
+        + " fun addSquare(sum, i) { return sum + i * i; }"
+        + " fun add(a, b) { return a + b; }";
+
+    public void testParallelForMatchesSequentialLoop() throws LoxException {
+        String sequential = run(SQUARES
+            + " for (var i = 0; i < 1000; i = i + 1) square(i); print squares;");
+        assertEquals(sequential,
+            run(SQUARES + " parallelFor(square, 0, 1000); print squares;"));
+
+        LoxProgram clear = engine.compile(
+            "for (var i = 0; i < 1000; i = i + 1) set(squares, i, 0);");
+        LoxContext context = engine.createContext(
+            new PrintStream(new ByteArrayOutputStream()));
+        engine.run(engine.compile(SQUARES), context);
+        Map<String, Object> globals = context.interpreter.globals.variables();
+        for (long grain : new long[] {1, 3, 64, 1000}) {
+            engine.run(clear, context);
+            ParallelRange.run(context.interpreter,
+                (LoxCallable) globals.get("square"), null, null, 0, 1000, grain);
+            assertEquals(sequential,
+                Interpreter.stringify(globals.get("squares")) + "\n");
+        }
+    }
+
+    public void testParallelReduceMatchesSequentialLoop() throws LoxException {
+        String sequential = run(SQUARES + " var sum = 0;"
+            + " for (var i = 0; i < 1000; i = i + 1) sum = addSquare(sum, i);"
+            + " print sum;");
+        assertEquals(sequential, run(SQUARES
+            + " print parallelReduce(addSquare, 0, 1000, 0, add);"));
+
+        LoxContext context = engine.createContext(
+            new PrintStream(new ByteArrayOutputStream()));
+        engine.run(engine.compile(SQUARES), context);
+        Map<String, Object> globals = context.interpreter.globals.variables();
+        // Folding the pieces' sums with addSquare would square them.
+        for (long grain : new long[] {1, 3, 64, 1000}) {
+            Object sum = ParallelRange.run(context.interpreter,
+                (LoxCallable) globals.get("addSquare"),
+                (LoxCallable) globals.get("add"), 0.0, 0, 1000, grain);
+            assertEquals(sequential, Interpreter.stringify(sum) + "\n");
+        }
+    }
+
+    public void testParallelErrorsReachCaller() throws LoxException {
+        try {
+            run("fun check(i) {\n  if (i == 500) return nil + 1;\n}\n"
+                + "parallelFor(check, 0, 1000);");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertEquals(2, error.getLine());
+        }
+    }
+
+    public void testProfilerSamplesLoxStacks() throws Exception {
+        LoxContext context = engine.createContext(
+            new PrintStream(new ByteArrayOutputStream()));
+        LoxProfiler profiler = new LoxProfiler(1);
+        context.setProfiler(profiler);
+        profiler.start();
+        engine.run(engine.compile(
+            "fun spin(n) {\n  var i = 0;\n  while (i < n) i = i + 1;\n}\n"
+            + "spin(300000);"), context);
+        profiler.stop();
+
+        StringWriter collapsed = new StringWriter();
+        profiler.writeCollapsed(collapsed);
+        assertTrue(collapsed.toString().contains("<script>:5;spin:3 "));
+    }
+
+    public void testMetricsArePublished() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name =
+            new ObjectName("com.craftinginterpreters.lox:type=Metrics");
+        long calls = (Long) server.getAttribute(name, "FunctionCalls");
+        run("fun f() {} f(); f();");
+        assertTrue((Long) server.getAttribute(name, "FunctionCalls") >= calls + 2);
+    }
+
+    // Pairs of source and output. Those that recurse would take years
+    // without memoization.
+    private static final String[] MEMOIZED = {
+        "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }"
+            + "print fib(90);",
+        "2.880067194370816E18\n",
+        "fun noisy(n) { print \"hi\"; return n; } noisy(1); noisy(1);",
+        "hi\nhi\n",
+        "fun f(n) { return n + 1; } print f(1);"
+            + "fun g(n) { return n + 2; } f = g; print f(1);",
+        "2\n3\n",
+        // A string long enough to be built as a rope.
+        "fun count(s, n) { if (n < 1) return 1;"
+            + " return count(s, n - 1) + count(s, n - 1); }"
+            + "var s = \"0123456789012345678901234567890123456789\";"
+            + "print count(s + s, 60);",
+        "1.152921504606847E18\n",
+        // Pure only if the function it calls is.
+        "fun a(n) { if (n < 1) return 1; return b(n - 1) + b(n - 1); }"
+            + "fun b(n) { if (n < 1) return 1; return a(n - 1) + a(n - 1); }"
+            + "print a(80);",
+        "1.2089258196146292E24\n",
+        "fun c(n) { return d(n); } fun d(n) { print n; return n; }"
+            + "c(1); c(1);",
+        "1\n1\n",
+    };
+
+    public void testPureFunctionsAreMemoized() throws LoxException {
+        for (int i = 0; i < MEMOIZED.length; i += 2) {
+            assertEquals(MEMOIZED[i + 1], run(MEMOIZED[i]));
+            assertEquals(MEMOIZED[i + 1], runLazily(MEMOIZED[i]));
+        }
+    }
+
+    public void testNumberFormatting() {
+        double[] values = {
+            1e23, 1e22, 1e-5, 1e7, 1e6, 0.001, 2e23, 0.1, 0.3,
+            Double.MIN_VALUE, 3 * Double.MIN_VALUE, Math.nextDown(Double.MIN_NORMAL),
+            Double.MIN_NORMAL, Double.MAX_VALUE,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            -0.0, 0.0, 3, -42, 9007199254740992.0,
+        };
+        String[] expected = {
+            "1.0E23", "1.0E22", "1.0E-5", "1.0E7", "1000000", "0.001", "2.0E23",
+            "0.1", "0.3",
+            "4.9E-324", "1.5E-323", "2.225073858507201E-308",
+            "2.2250738585072014E-308", "1.7976931348623157E308",
+            "NaN", "Infinity", "-Infinity",
+            "-0", "0", "3", "-42", "9.007199254740992E15",
+        };
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(expected[i], NumberFormatter.toString(values[i]));
+        }
+
+        // Every double reads back as itself, and integers below 10^7 print
+        // without a fraction.
+        Random random = new Random(41);
+        for (int i = 0; i < 200000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            String text = NumberFormatter.toString(value);
+            assertEquals(Double.doubleToLongBits(value),
+                Double.doubleToLongBits(Double.parseDouble(text)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long integer = random.nextInt(19999999) - 9999999;
+            assertEquals(Long.toString(integer),
+                NumberFormatter.toString((double) integer));
+        }
+    }
+
+    public void testConcatenationBuildsRopes() throws LoxException {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            expected.append("0123456789");
+        }
+        assertEquals(expected + "\n", run(
+            "var s = \"\"; for (var i = 0; i < 1000; i = i + 1) s = s + \"0123456789\";"
+            + "print s;"));
+        assertTrue(Rope.concat(expected.toString(), "")
+            .equals(expected.toString()));
+    }
+
+    public void testArrays() throws LoxException {
+        assertEquals("[1, 2.5, x, nil]\n4\n2.5\n", run(
+            "var a = array(); push(a, 1); push(a, 2.5); push(a, \"x\");"
+            + "push(a, nil); print a; print len(a); print get(a, 1);"));
+        try {
+            run("get(array(), 0);");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertTrue(error.getMessage().startsWith("Index out of bounds."));
+        }
+    }
+
+    public void testMaps() throws LoxException {
+        assertEquals("{a: 1, 2: two, nil: true}\n1\nnil\n[a, nil]\n2\n", run(
+            "var m = map(); set(m, \"a\", 1); set(m, 2, \"two\"); set(m, nil, true);"
+            + "print m; print get(m, \"a\"); print get(m, \"b\");"
+            + "remove(m, 2); print keys(m); print len(m);"));
+        // A key built by concatenation finds the entry of an equal literal.
+        assertEquals("true\n", run(
+            "var k = \"\"; for (var i = 0; i < 10; i = i + 1) k = k + \"0123456789\";"
+            + "var m = map(); set(m, k, 1);"
+            + "print has(m, \"0123456789012345678901234567890123456789"
+            + "0123456789012345678901234567890123456789"
+            + "01234567890123456789\");"));
+    }
+
+    public void testPrintingNestedContainers() throws LoxException {
+        assertEquals("[1, [2, [...]]]\n[[1, [...]], [1, [...]]]\n", run(
+            "var a = array(); var b = array(); push(a, 1); push(a, b);"
+            + "push(b, 2); push(b, a); print a;"
+            + "var c = array(); push(c, 1); push(c, c);"
+            + "var d = array(); push(d, c); push(d, c); print d;"));
+        assertEquals("{m: [{...}], nil: nil}\n", run(
+            "var m = map(); var a = array(); push(a, m); set(m, \"m\", a);"
+            + "set(m, nil, nil); print m;"));
+        // Deeper than the Java stack could recurse.
+        assertEquals(200001 * 2 + 1, run(
+            "var a = array(); for (var i = 0; i < 200000; i = i + 1) {"
+            + " var b = array(); push(b, a); a = b; } print a;").length());
+    }
+
+    public void testJavaInterop() throws LoxException {
+        engine.allowJavaClass("java.lang.Math");
+        engine.allowJavaClass("java.lang.StringBuilder");
+        assertEquals("3\n0.5\n1-2.5\n", run(
+            "var Math = java(\"java.lang.Math\");"
+            + "print Math.max(2, 3); print Math.abs(-0.5);"
+            + "var sb = java(\"java.lang.StringBuilder\")();"
+            + "sb.append(1).append(\"-\").append(2.5); print sb;"));
+        // Only numbers a long can hold pick the long overloads.
+        assertEquals("1.0E300\n-0\nInfinity\n9.223372036854776E18\n", run(
+            "var Math = java(\"java.lang.Math\");"
+            + "print Math.max(Math.pow(10, 300), 2);"
+            + "print Math.max(-0.0, -0.0); print Math.max(1 / 0, 2);"
+            + "print Math.abs(9223372036854775808);"));
+        try {
+            run("java(\"java.lang.System\");");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertTrue(error.getMessage().startsWith(
+                "Java class 'java.lang.System' is not allowed."));
+        }
+        engine.allowJavaClass("java.lang.Long");
+        assertEquals("9.007199254740992E15\n", run(
+            "print java(\"java.lang.Long\").parseLong(\"9007199254740992\");"));
+        try {
+            run("java(\"java.lang.Long\").parseLong(\"9007199254740993\");");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertTrue(error.getMessage().startsWith(
+                "Java number 9007199254740993 cannot be represented exactly"));
+        }
+    }
+
+    public void testJoinReturnsTaskResults() throws LoxException {
+        // Writes to a captured local, a global and a field are all visible
+        // once join returns.
+        assertEquals("4\n1\n2\n3\n", run(
+            "var g = 0; class Box {} var box = Box();"
+            + "fun outer() {"
+            + "  var local = 0;"
+            + "  fun work() { local = 1; g = 2; box.x = 3; return 4; }"
+            + "  var task = spawn(work);"
+            + "  print join(task); print local; print g; print box.x;"
+            + "}"
+            + "outer();"));
+        try {
+            run("fun bad() {\n  return nil + 1;\n}\nvar task = spawn(bad);\n"
+                + "join(task);");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertEquals(2, error.getLine());
+            assertFalse(error.getMessage().startsWith("Unjoined"));
+        }
+    }
+
+    public void testRunWaitsForUnjoinedTasks() throws LoxException {
+        assertEquals("hi\n", run("fun hi() { print \"hi\"; } spawn(hi);"));
+        try {
+            run("fun bad() {\n  return nil + 1;\n}\nspawn(bad);");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertTrue(error.getMessage().startsWith("Unjoined task failed"));
+            assertEquals(2, error.getLine());
+        }
+    }
+
+    public void testFilesStreamLines() throws Exception {
+        File file = File.createTempFile("lox", ".txt");
+        file.deleteOnExit();
+        String path = file.getPath().replace("\\", "/");
+        assertEquals("one\ntwo 2\nnil\n", run(
+            "var out = create(\"" + path + "\");"
+            + "write(out, \"one\n\"); write(out, \"two \"); write(out, 2); close(out);"
+            + "var in = open(\"" + path + "\");"
+            + "print readLine(in); print readLine(in); print readLine(in);"));
+    }
+
+    public void testWritersFlushWhenRunEnds() throws Exception {
+        Path file = Files.createTempFile("lox", ".txt");
+        try {
+            String path = file.toString().replace("\\", "/");
+            LoxContext context = engine.createContext(
+                new PrintStream(new ByteArrayOutputStream()));
+            engine.run(engine.compile("var out = create(\"" + path + "\");"
+                + "write(out, \"kept\");"), context);
+            assertEquals("kept", readString(file));
+            // The next run in the same context still flushes the writer.
+            engine.run(engine.compile("write(out, \" too\");"), context);
+            assertEquals("kept too", readString(file));
+            engine.run(engine.compile("close(out);"), context);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testOutputFlushPolicy() throws Exception {
+        Path file = Files.createTempFile("lox", ".txt");
+        try {
+            // A terminal gets every line as soon as it is printed.
+            LoxOutput lines = new LoxOutput(FileChannel.open(file,
+                StandardOpenOption.WRITE), StandardCharsets.UTF_8,
+                1024, true, 0);
+            lines.print("no newline");
+            assertEquals("", readString(file));
+            lines.println("yet");
+            assertEquals("no newlineyet\n", readString(file));
+            lines.close();
+
+            // Otherwise only a full buffer is written out.
+            LoxOutput blocks = new LoxOutput(FileChannel.open(file,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                StandardCharsets.UTF_8, 16, false, 0);
+            blocks.println("0123456789abcdefXYZ");
+            assertEquals("0123456789abcdef", readString(file));
+            blocks.close();
+            assertEquals("0123456789abcdefXYZ\n", readString(file));
+
+            // The timer flushes what is left in the buffer.
+            LoxOutput timed = new LoxOutput(FileChannel.open(file,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                StandardCharsets.UTF_8, 1024, false, 10);
+            timed.println("tick");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (readString(file).isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("tick\n", readString(file));
+            timed.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String readString(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    public void testImportsModules() throws Exception {
+        Path dir = Files.createTempDirectory("lox");
+        try {
+            Path main = dir.resolve("main.lox");
+            Path lib = dir.resolve("lib.lox");
+            Files.write(lib, ("print \"loaded\"; var greeting = \"hi\";"
+                + "fun greet(name) { return greeting + \" \" + name; }")
+                .getBytes(StandardCharsets.UTF_8));
+            String source = "import \"lib.lox\"; import \"lib.lox\" as again;"
+                + "var greeting = \"yo\"; print again.greet(\"bob\");";
+            assertEquals("loaded\nhi bob\n", run(engine.compile(source, main)));
+
+            // An edited module is recompiled and run again.
+            Files.write(lib, "fun greet(name) { return \"bye \" + name; }"
+                .getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(lib, FileTime.fromMillis(0));
+            assertEquals("bye bob\n", run(engine.compile(source, main)));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    public void testModuleCompileErrors() throws Exception {
+        Path dir = Files.createTempDirectory("lox");
+        try {
+            Path lib = dir.resolve("lib.lox");
+            Files.write(lib, "var ok = 1;\nvar = 2;"
+                .getBytes(StandardCharsets.UTF_8));
+            run(engine.compile("import \"lib.lox\";", dir.resolve("main.lox")));
+            fail();
+        } catch (LoxCompileException error) {
+            assertEquals(65, error.exitCode());
+            assertEquals(dir.resolve("lib.lox").toString(), error.getModule());
+            assertEquals(1, error.getErrors().size());
+            assertTrue(error.getErrors().get(0).startsWith("[line 2]"));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    public void testTasksImportWhileModulesRun() throws Exception {
+        Path dir = Files.createTempDirectory("lox");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Files.write(dir.resolve("lib.lox"),
+                "print \"loaded\"; var greeting = \"hi\";"
+                .getBytes(StandardCharsets.UTF_8));
+            // The module waits for a task that imports another module.
+            Files.write(dir.resolve("outer.lox"),
+                ("fun load() { import \"lib.lox\"; return lib.greeting; }"
+                + "var greeting = join(spawn(load));")
+                .getBytes(StandardCharsets.UTF_8));
+            // A task and the program import the same module at once.
+            LoxProgram program = engine.compile(
+                "fun load() { import \"lib.lox\"; return lib.greeting; }"
+                + "var task = spawn(load); import \"outer.lox\";"
+                + "print outer.greeting; print join(task);",
+                dir.resolve("main.lox"));
+            Future<String> output = pool.submit(() -> run(program));
+            assertEquals("loaded\nhi\nhi\n", output.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            deleteTree(dir);
+        }
+    }
+
+    public void testLazyFunctionBodies() throws LoxException {
+        String declarations = "fun broken() { var = ; }"
+            + "class A { init(x) { this.x = x; } } class B < A { init(x) { super.init(x + 1); } }"
+            + "fun f(a) { fun g() { return a; } return B(g()).x; }";
+        assertEquals("2\n", runLazily(declarations + "print f(1);"));
+        try {
+            runLazily(declarations + "broken();");
+            fail();
+        } catch (LoxRuntimeException error) {
+            assertTrue(error.getMessage().startsWith("Error in body of 'broken'"));
+        }
+    }
+
+    private List<String> resolveErrors(String source, boolean whileParsing) {
+        ErrorReporter reporter = new ErrorReporter();
+        List<Token> tokens = new Scanner(source, reporter).scanTokens();
+        Resolver resolver = new Resolver(engine.symbols, reporter);
+        List<Stmt> statements = new Parser(tokens, reporter, null,
+            whileParsing ? resolver : null).parse();
+        if (!whileParsing) {
+            resolver.resolveProgram(statements);
+        }
+        return reporter.errors();
+    }
+
+    public void testParserResolvesLikeResolver() throws LoxException {
+        String source = "return 1; { var a = a; } { var b; var b; }"
+            + "class C { init() { return 1; } m() { return super.m(); } }";
+        assertEquals(5, resolveErrors(source, false).size());
+        assertEquals(resolveErrors(source, false), resolveErrors(source, true));
+        assertEquals("0\n1\n3\n", run("var i = 9; for (var i = 0; i < 2; i = i + 1) {"
+            + " fun f() { return i; } print f(); } fun g() { var j = 1;"
+            + " for (; j < 3; j = j + 1) {} return j; } print g();"));
+    }
+
+    // Prints 50000 twice, through nested parentheses and a long '+' chain.
+    private static String deeplyNested() {
+        StringBuilder source = new StringBuilder("var a; print ");
+        for (int i = 0; i < 50000; i++) {
+            source.append("(1 + ");
+        }
+        source.append("(a = 0)");
+        for (int i = 0; i < 50000; i++) {
+            source.append(")");
+        }
+        source.append("; print a");
+        for (int i = 0; i < 50000; i++) {
+            source.append(" + 1");
+        }
+        return source.append(";").toString();
+    }
+
+    public void testDeeplyNestedExpressions() throws LoxException {
+        assertEquals("50000\n50000\n", run(deeplyNested()));
+    }
+
+    public void testDeeplyNestedExpressionsInLazyBody() throws LoxException {
+        String body = deeplyNested().replace("var a;", "");
+        assertEquals("50000\n50000\n", runLazily(
+            "var a; fun f() { " + body + " } f();"));
+    }
+
+    public void testGlobalCacheFollowsContext() throws LoxException {
+        LoxProgram program = engine.compile("var x = 1; print x;");
+        Expr.Variable site = (Expr.Variable)
+            ((Stmt.Print) program.statements.get(1)).expression;
+        LoxContext context =
+            engine.createContext(new PrintStream(new ByteArrayOutputStream()));
+        run(program);
+        engine.run(program, context);
+        GlobalEnvironment.Cache cache = site.globalCache;
+        assertSame(context.interpreter.globals, cache.owner);
+        engine.run(program, context);
+        assertSame(cache, site.globalCache);
+    }
+
+    // Lines typed into one REPL context, each compiled on its own. A line
+    // whose functions and closures have all been replaced can be collected,
+    // even though it read globals that are still defined.
+    public void testReplacedLinesAreCollected() throws Exception {
+        LoxContext context =
+            engine.createContext(new PrintStream(new ByteArrayOutputStream()));
+        engine.run(engine.compile("fun f(n) { return n; } class C {}"), context);
+        List<WeakReference<Object>> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            LoxProgram line = engine.compile("var x = f(" + i + ") + 1; C;"
+                + "fun make() { var k = x; fun get() { return k; } return get; }"
+                + "var get = make(); print get();");
+            engine.run(line, context);
+            Expr.Call call = (Expr.Call)
+                ((Expr.Binary) ((Stmt.Var) line.statements.get(0)).initializer).left;
+            lines.add(new WeakReference<>(call.callee));
+            lines.add(new WeakReference<>(line.statements.get(1)));
+            lines.add(new WeakReference<>(line.statements.get(2)));
+        }
+        // The last line's make and get are still bound.
+        lines.subList(lines.size() - 3, lines.size()).clear();
+        for (int i = 0; i < 50 && !allCleared(lines); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(allCleared(lines));
+    }
+
+    private static boolean allCleared(List<WeakReference<Object>> references) {
+        for (WeakReference<Object> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void testPurityAfterSyntaxError() {
+        ErrorReporter reporter = new ErrorReporter();
+        // f's body never ends, so it is left without a Stmt.Function.
+        List<Token> tokens = new Scanner(
+            "fun g(a) { return f(a); } fun f(a) { return a;", reporter)
+            .scanTokens();
+        Resolver resolver = new Resolver(engine.symbols, reporter);
+        List<Stmt> statements =
+            new Parser(tokens, reporter, null, resolver).parse();
+        resolver.markPure();
+        assertTrue(reporter.hadError());
+        assertFalse(((Stmt.Function) statements.get(0)).pure);
+    }
+
+    private static String request(int port, String header, String body)
+        throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write((header + "\n" + body).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return new String(socket.getInputStream().readAllBytes(),
+                StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String eval(int port, String source) throws IOException {
+        return request(port, "EVAL "
+            + source.getBytes(StandardCharsets.UTF_8).length, source);
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder())
+                     .collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    public void testServerRunsRequests() throws Exception {
+        ServerSocket socket =
+            new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        LoxServer server = new LoxServer(engine, socket.getLocalPort());
+        Path dir = Files.createTempDirectory("lox");
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve(socket);
+            } catch (IOException e) {
+                // Closed by the test.
+            }
+        });
+        serving.start();
+        try {
+            assertEquals("OUT 3\nOUT a\nEXIT 0\n",
+                eval(socket.getLocalPort(), "print 1 + 2; print \"a\";"));
+            assertEquals("ERR Undefined variable 'missing'.\nERR [line 1]\n"
+                + "EXIT 70\n", eval(socket.getLocalPort(), "print missing;"));
+
+            String usage = "ERR EVAL takes a length from 0 to "
+                + LoxServer.MAX_SOURCE_BYTES + " bytes.\nEXIT 64\n";
+            assertEquals(usage, request(socket.getLocalPort(), "EVAL x", ""));
+            assertEquals(usage, request(socket.getLocalPort(), "EVAL -1", ""));
+            assertEquals(usage,
+                request(socket.getLocalPort(), "EVAL 2147483647", ""));
+
+            // RUN looks up imports next to the script.
+            Path main = dir.resolve("main.lox");
+            Files.write(dir.resolve("lib.lox"),
+                "var greeting = \"hi\";".getBytes(StandardCharsets.UTF_8));
+            Files.write(main, "import \"lib.lox\" as lib; print lib.greeting;"
+                .getBytes(StandardCharsets.UTF_8));
+            assertEquals("OUT hi\nEXIT 0\n",
+                request(socket.getLocalPort(), "RUN " + main, ""));
+        } finally {
+            socket.close();
+            serving.join();
+            deleteTree(dir);
+        }
+    }
+
+    public void testBatchRunsEveryScript() throws Exception {
+        Path dir = Files.createTempDirectory("lox");
+        Path output = Files.createTempDirectory("lox");
+        try {
+            Files.write(dir.resolve("a.lox"),
+                "print 1 + 2;".getBytes(StandardCharsets.UTF_8));
+            Files.write(dir.resolve("b.lox"),
+                "print \"b\";\nprint missing;".getBytes(StandardCharsets.UTF_8));
+            List<String> paths = Collections.singletonList(dir.toString());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            LoxBatch batch = new LoxBatch(engine, 2, output,
+                new PrintStream(out, true), new PrintStream(err, true));
+            assertEquals(70, batch.run(paths));
+            Path written = output.resolve(dir.getRoot().relativize(dir));
+            assertEquals("3\n", new String(Files.readAllBytes(
+                written.resolve("a.lox.out")), StandardCharsets.UTF_8));
+            assertEquals("b\n", new String(Files.readAllBytes(
+                written.resolve("b.lox.out")), StandardCharsets.UTF_8));
+            assertTrue(new String(Files.readAllBytes(
+                written.resolve("b.lox.err")), StandardCharsets.UTF_8)
+                .startsWith("Undefined variable 'missing'."));
+            String summary = out.toString();
+            assertTrue(summary.matches("(?s)\nstatus +time  script\n"
+                + " +0 +\\d+ms  \\Q" + dir.resolve("a.lox") + "\\E\n"
+                + " +70 +\\d+ms  \\Q" + dir.resolve("b.lox") + "\\E\n"
+                + "2 scripts, 1 failed, \\d+ms wall, \\d+ms total script time\\.\n"));
+            assertEquals("", err.toString());
+
+            // Without an output directory, each script's output comes first.
+            out.reset();
+            batch = new LoxBatch(engine, 2, null,
+                new PrintStream(out, true), new PrintStream(err, true));
+            assertEquals(70, batch.run(paths));
+            assertTrue(out.toString().startsWith(
+                "==> " + dir.resolve("a.lox") + " <==\n3\n"
+                + "==> " + dir.resolve("b.lox") + " <==\nb\n\nstatus"));
+            assertTrue(err.toString().startsWith("Undefined variable 'missing'."));
+        } finally {
+            deleteTree(dir);
+            deleteTree(output);
+        }
+    }
+
+    public void testFlightRecorderEvents() throws Exception {
+        Path file = Files.createTempFile("lox", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.craftinginterpreters.lox.FunctionCall");
+            recording.enable("com.craftinginterpreters.lox.Instantiation");
+            recording.enable("com.craftinginterpreters.lox.RuntimeError");
+            recording.start();
+            try {
+                run("class Point {}\nfun make() { print Point(); }\n"
+                    + "make(); make();\nprint missing;");
+                fail();
+            } catch (LoxRuntimeException error) {
+                // Recorded below.
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<String> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            switch (event.getEventType().getName()) {
+                case "com.craftinginterpreters.lox.FunctionCall":
+                    events.add("call " + event.getString("function")
+                        + " " + event.getInt("line"));
+                    break;
+                case "com.craftinginterpreters.lox.Instantiation":
+                    events.add("new " + event.getString("className"));
+                    break;
+                case "com.craftinginterpreters.lox.RuntimeError":
+                    events.add("error " + event.getString("message")
+                        + " " + event.getInt("line"));
+                    break;
+            }
+        }
+        Files.delete(file);
+        Collections.sort(events);
+        assertEquals(List.of("call make 2", "call make 2",
+            "error Undefined variable 'missing'. 4", "new Point", "new Point"),
+            events);
+    }
+
+    public void testAllocationsAreCountedPerLine() throws LoxException {
+        LoxContext context = engine.createContext(
+            new PrintStream(new ByteArrayOutputStream()));
+        LoxAllocationProfiler allocations = new LoxAllocationProfiler();
+        context.setAllocationProfiler(allocations);
+        engine.run(engine.compile(
+            "fun f(x) { print x; }\n"
+            + "for (var i = 0; i < 10; i = i + 1)\n"
+            + "  f(i * 2);"), context);
+        // Each call allocates its argument list, the number passed and the
+        // callee's environment on the line making the call.
+        assertEquals(10, allocations.count(
+            LoxAllocationProfiler.Kind.ARGUMENT_LIST, 3));
+        assertEquals(10, allocations.count(
+            LoxAllocationProfiler.Kind.BOXED_DOUBLE, 3));
+        assertEquals(10, allocations.count(
+            LoxAllocationProfiler.Kind.ENVIRONMENT, 3));
+        assertEquals(10, allocations.count(
+            LoxAllocationProfiler.Kind.BOXED_DOUBLE, 2));
+        assertEquals(0, allocations.count(
+            LoxAllocationProfiler.Kind.ENVIRONMENT, 1));
+    }
+
+    public void testHeapReportFindsDominators() throws LoxException {
+        LoxContext context = engine.createContext(
+            new PrintStream(new ByteArrayOutputStream()));
+        // a reaches leaf two ways, both through a; b and a.left share one
+        // object that neither alone keeps alive.
+        engine.run(engine.compile(
+            "class Box {}\n"
+            + "var a = Box(); var b = Box();\n"
+            + "{\n"
+            + "  var leaf = Box(); var shared = Box();\n"
+            + "  a.left = Box(); a.right = Box();\n"
+            + "  a.left.leaf = leaf; a.right.leaf = leaf;\n"
+            + "  a.left.shared = shared; b.shared = shared;\n"
+            + "}"), context);
+        GlobalEnvironment globals = context.interpreter.globals;
+        LoxInstance a = (LoxInstance) globals.variables().get("a");
+        LoxInstance b = (LoxInstance) globals.variables().get("b");
+        LoxInstance left = (LoxInstance) a.fields().get("left");
+        Object leaf = left.fields().get("leaf");
+        Object shared = left.fields().get("shared");
+
+        HeapReport report = new HeapReport(globals);
+        assertSame(a, report.dominator(leaf));
+        assertSame(a, report.dominator(left));
+        assertSame(globals, report.dominator(shared));
+        assertSame(globals, report.dominator(b));
+        // leaf counts toward a, not toward either box that refers to it.
+        long right = report.retained(a.fields().get("right"));
+        assertTrue(report.retained(a) > report.retained(left) + right
+            + report.retained(leaf));
+    }
+}